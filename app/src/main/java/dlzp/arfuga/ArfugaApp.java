@@ -35,8 +35,15 @@ public class ArfugaApp extends Application {
         return instance.dlzpServerClient;
     }
 
+    public static EventBus getEventBus() {
+        Objects.requireNonNull(instance);
+        Objects.requireNonNull(instance.eventBus);
+        return instance.eventBus;
+    }
+
     private N33ble1AssociationManager n33ble1AssociationManager = null;
     private DLZPServerClient dlzpServerClient = null;
+    private EventBus eventBus = null;
 
     @Override
     public void onCreate() {
@@ -47,6 +54,9 @@ public class ArfugaApp extends Application {
         }
         instance = this;
 
+        // Before anything that may publish.
+        eventBus = new EventBus();
+
         n33ble1AssociationManager = new N33ble1AssociationManager(this);
         n33ble1AssociationManager.service();
 
@@ -0,0 +1,17 @@
+package dlzp.arfuga;
+
+import java.util.Locale;
+
+/**
+ * Formats durations for the stats shown in diagnostics, so they all read the same.
+ */
+public final class Durations {
+    private Durations() {}
+
+    /**
+     * @return The duration in milliseconds with one decimal, e.g. "12.3ms".
+     */
+    public static String formatMs(long durationNs) {
+        return String.format(Locale.US, "%.1fms", durationNs / 1000000.0);
+    }
+}
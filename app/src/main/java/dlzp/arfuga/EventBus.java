@@ -0,0 +1,135 @@
+package dlzp.arfuga;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process publish/subscribe for events that only concern this app, e.g. N33ble1 connection
+ * changes. Replaces broadcasting Intents to ourselves, which routes every event through the system
+ * server and allocates an Intent per receiver.
+ *
+ * Events are plain immutable objects, and listeners subscribe to an event class; an event is
+ * delivered to the listeners of its exact class. Listeners are called either synchronously on the
+ * publishing thread, or posted to a Looper in publishing order, like a broadcast receiver would
+ * be. Posting never re-enters a listener from inside another listener's call.
+ *
+ * Publishing and subscribing are safe from any thread. Publishing with no listeners costs a map
+ * lookup.
+ */
+public class EventBus {
+    private static final String LOG_TAG = "EventBus";
+
+    public interface Listener<T> {
+        void onEvent(T event);
+    }
+
+    /**
+     * A registered listener, to be passed to unsubscribe.
+     */
+    public static final class Subscription<T> {
+        private final Class<T> eventType;
+        private final Listener<? super T> listener;
+        private final Handler handler; // Null for synchronous delivery.
+        private volatile boolean active = true;
+
+        private Subscription(Class<T> eventType, Listener<? super T> listener, Handler handler) {
+            this.eventType = eventType;
+            this.listener = listener;
+            this.handler = handler;
+        }
+
+        private void deliver(Object event) {
+            final T typedEvent = eventType.cast(event);
+            if(handler == null) {
+                listener.onEvent(typedEvent);
+                return;
+            }
+
+            handler.post(() -> {
+                // Nothing is delivered once unsubscribed, even if it was published before.
+                if(active) {
+                    listener.onEvent(typedEvent);
+                }
+            });
+        }
+    }
+
+    private final Map<Class<?>, List<Subscription<?>>> subscriptions = new ConcurrentHashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Delivers the event to the listeners subscribed to its class.
+     */
+    public void publish(Object event) {
+        final List<Subscription<?>> listeners = subscriptions.get(event.getClass());
+        if(listeners == null) {
+            return;
+        }
+        for(Subscription<?> subscription : listeners) {
+            if(subscription.active) {
+                subscription.deliver(event);
+            }
+        }
+    }
+
+    /**
+     * Calls the listener on the publishing thread, as part of publish().
+     */
+    public <T> Subscription<T> subscribe(Class<T> eventType, Listener<? super T> listener) {
+        return add(new Subscription<>(eventType, listener, null));
+    }
+
+    /**
+     * Calls the listener on the looper's thread, after publish() returns.
+     */
+    public <T> Subscription<T> subscribe(Class<T> eventType, Looper looper, Listener<? super T> listener) {
+        final Handler handler = looper == Looper.getMainLooper() ? mainHandler : new Handler(looper);
+        return add(new Subscription<>(eventType, listener, handler));
+    }
+
+    public void unsubscribe(Subscription<?> subscription) {
+        subscription.active = false;
+        final List<Subscription<?>> listeners = subscriptions.get(subscription.eventType);
+        if(listeners != null) {
+            listeners.remove(subscription);
+        }
+    }
+
+    /**
+     * Calls the listener on the main thread until the owner is destroyed, e.g. until a fragment's
+     * view is destroyed when given its view lifecycle owner. Must be called on the main thread.
+     */
+    public <T> void observe(LifecycleOwner owner, Class<T> eventType, Listener<? super T> listener) {
+        final Lifecycle lifecycle = owner.getLifecycle();
+        if(lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            Log.w(LOG_TAG, "Not subscribing a destroyed owner to " + eventType.getSimpleName());
+            return;
+        }
+
+        final Subscription<T> subscription = subscribe(eventType, Looper.getMainLooper(), listener);
+        lifecycle.addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onDestroy(@NonNull LifecycleOwner destroyedOwner) {
+                unsubscribe(subscription);
+                lifecycle.removeObserver(this);
+            }
+        });
+    }
+
+    private <T> Subscription<T> add(Subscription<T> subscription) {
+        subscriptions.computeIfAbsent(subscription.eventType, (Class<?> eventType) -> new CopyOnWriteArrayList<>())
+                .add(subscription);
+        return subscription;
+    }
+}
@@ -4,21 +4,17 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Looper;
 import android.util.Log;
 
-import java.util.LinkedList;
 import java.util.UUID;
 
-import dlzp.arfuga.Constants;
-
 /**
  * When N33ble1 is in range and connectable, this is created/maintained by N33ble1MonitorService to
- * monitor BLE characteristics. This also manages async ChangeRequests that push new data to N33ble1
- * via one of its BLE characteristics.
+ * monitor BLE characteristics. This also creates the async ChangeRequests that read or push new
+ * data to N33ble1 via one of its BLE characteristics, which N33ble1GattScheduler runs in turn.
  *
  * TODO This is accessed statically through N33ble1MonitorService. Should it exist / be accessible
  *      elsewhere? Use Intent actions instead? Move away from intents entirely?
@@ -28,154 +24,216 @@ import dlzp.arfuga.Constants;
 public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
     private static final String LOG_TAG = "N33ble1BluetoothGattCallback";
 
+    /**
+     * Gets the values of N33ble1's characteristics as they are read or notified, on the main
+     * thread.
+     */
+    interface CharacterValueListener {
+        /**
+         * @param character One of N33ble1Profile's characters.
+         * @param value A snapshot of the value, which later changes don't touch.
+         */
+        void onCharacterValue(int character, byte[] value);
+    }
+
     public static class NullBleComponentException extends Exception {
         NullBleComponentException(String message) {
             super(message);
         }
     }
 
+    /**
+     * A read or write of one of N33ble1's characteristics or descriptors, run by the
+     * N33ble1GattScheduler. Writes send the value the characteristic or descriptor held when the
+     * request was created, even if the queue reorders them.
+     */
     public class ChangeRequest {
+        static final int StartStarted = 0;
+        static final int StartBusy = 1; // BluetoothGatt refused, e.g. another operation is outstanding.
+        static final int StartInvalid = 2;
+
         private final BluetoothGattDescriptor bluetoothDescriptor;
         private final BluetoothGattCharacteristic bluetoothCharacteristic;
         private final boolean isWrite;
-        private int attempts = 0;
-
+        private final byte[] value;
+        final int priority;
+
+        // Managed by the N33ble1GattScheduler.
+        int attempts = 0;
+        long sequence = 0;
+        long addedNs = 0;
+        long notBeforeNs = 0;
+        long startedNs = 0;
+        long lateResultUntilNs = 0;
+
+        // Run once the request succeeded; not if it is given up on or cancelled.
         public Runnable onCompletedRunnable = null;
 
         ChangeRequest(BluetoothGattDescriptor bluetoothDescriptor) {
             this.bluetoothDescriptor = bluetoothDescriptor;
             this.bluetoothCharacteristic = null;
             this.isWrite = true;
+            this.value = bluetoothDescriptor.getValue();
+            // Descriptor writes enable the button notifications.
+            this.priority = N33ble1GattScheduler.PriorityButton;
         }
 
         ChangeRequest(BluetoothGattCharacteristic bluetoothCharacteristic, boolean isWrite) {
+            this(bluetoothCharacteristic, isWrite,
+                    isWrite ? N33ble1GattScheduler.PriorityWrite : N33ble1GattScheduler.PriorityRead);
+        }
+
+        ChangeRequest(BluetoothGattCharacteristic bluetoothCharacteristic, boolean isWrite, int priority) {
             this.bluetoothDescriptor = null;
             this.bluetoothCharacteristic = bluetoothCharacteristic;
             this.isWrite = isWrite;
+            this.value = isWrite ? bluetoothCharacteristic.getValue() : null;
+            this.priority = priority;
         }
 
-        private boolean doChange() {
-            if(attempts > 5) {
-                Log.w(LOG_TAG, "Change request reached maximum attempts, not retrying.");
-                N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
-                return false;
-            }
-            attempts++;
+        /**
+         * @return True if only the newest value matters, so the write may be replaced by a later
+         * one to the same characteristic: LED and board writes, which nothing waits on.
+         */
+        boolean isCoalescable() {
+            return isWrite && bluetoothCharacteristic != null &&
+                    priority == N33ble1GattScheduler.PriorityWrite && onCompletedRunnable == null;
+        }
+
+        UUID getUuid() {
+            return bluetoothDescriptor != null ? bluetoothDescriptor.getUuid() : bluetoothCharacteristic.getUuid();
+        }
 
+        int start() {
             try {
+                final boolean started;
                 if(bluetoothDescriptor != null && bluetoothCharacteristic == null) {
                     if(isWrite) {
-                        gatt.writeDescriptor(bluetoothDescriptor);
+                        bluetoothDescriptor.setValue(value);
+                        started = gatt.writeDescriptor(bluetoothDescriptor);
                     } else {
                         Log.e(LOG_TAG, "Descriptor reads are not implemented!");
-                        return false;
+                        return StartInvalid;
                     }
                 } else if (bluetoothCharacteristic != null && bluetoothDescriptor == null) {
                     if(isWrite) {
-                        gatt.writeCharacteristic(bluetoothCharacteristic);
+                        bluetoothCharacteristic.setValue(value);
+                        bluetoothCharacteristic.setWriteType(getWriteType(bluetoothCharacteristic));
+                        started = gatt.writeCharacteristic(bluetoothCharacteristic);
                     } else {
-                        gatt.readCharacteristic(bluetoothCharacteristic);
+                        started = gatt.readCharacteristic(bluetoothCharacteristic);
                     }
                 } else {
                     Log.e(LOG_TAG, "Ambiguous change request cannot be completed!");
-                    return false;
+                    return StartInvalid;
                 }
+                return started ? StartStarted : StartBusy;
             } catch (SecurityException e) {
-                N33ble1State.sendAndLogBluetoothPermissionError(context, LOG_TAG, "ChangeRequest.doChange");
-                return false;
+                N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "ChangeRequest.start");
+                return StartInvalid;
             }
-
-            return true;
         }
 
-        private void complete() {
+        void complete() {
             if(onCompletedRunnable != null) {
                 onCompletedRunnable.run();
             }
         }
     }
 
-    private void doNextChangeRequest() {
-        while(true) {
-            final ChangeRequest request = changeRequests.peekFirst();
-            if(request == null) {
-                return;
-            }
-
-            final boolean changeWasRequested = request.doChange();
-            if(changeWasRequested) {
-                return;
-            }
-
-            request.complete();
-            changeRequests.pollFirst();
+    /**
+     * Writes to cosmetic characteristics go without response where N33ble1 supports it, so they
+     * don't cost a round trip to N33ble1. onCharacteristicWrite still follows once the stack has
+     * taken the write, which keeps the queue from sending faster than the link can carry.
+     * Everything else, e.g. the button-handled acks, waits for N33ble1's acknowledgement.
+     */
+    private static int getWriteType(BluetoothGattCharacteristic character) {
+        if(isCosmetic(N33ble1Profile.indexOf(character.getUuid())) &&
+                (character.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+            return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
         }
+        return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    private static boolean isCosmetic(int character) {
+        return character == N33ble1Profile.BoardLed || character == N33ble1Profile.ButtonLeftLed ||
+                character == N33ble1Profile.ButtonRightLed;
     }
 
     public void addChangeRequest(ChangeRequest changeRequest) {
-        final boolean wasEmpty = changeRequests.isEmpty();
-        changeRequests.add(changeRequest);
-        if(wasEmpty) {
-            doNextChangeRequest();
-        }
+        changeScheduler.add(changeRequest);
+    }
+
+    /**
+     * Drops all pending change requests, for when the connection is gone.
+     */
+    public void cancelChangeRequests() {
+        changeScheduler.cancelAll();
+    }
+
+    /**
+     * @return The change request queue depth and latencies, for diagnostics.
+     */
+    public String getChangeRequestStats() {
+        return changeScheduler.getStatsDescription();
+    }
+
+    /**
+     * @return The link's tuning and the latencies it results in, for diagnostics.
+     */
+    public String getLinkStats() {
+        return linkTuner.getStatsDescription();
     }
 
-    private void retryChangeRequest() {
-        if (changeRequests.isEmpty()) {
-            Log.e(LOG_TAG, "Trying to retry a request but there are no pending requests!");
-        } else {
-            doNextChangeRequest();
+    void setCharacterValueListener(CharacterValueListener listener) {
+        characterValueListener = listener;
+    }
+
+    private void onCharacterValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        final int character = N33ble1Profile.indexOf(characteristic.getUuid());
+        if(character != -1 && characterValueListener != null) {
+            characterValueListener.onCharacterValue(character, value);
         }
     }
 
-    private void completeChangeRequest() {
-        final ChangeRequest changeRequest = changeRequests.pollFirst();
-        if(changeRequest == null) {
-            Log.e(LOG_TAG, "Trying to complete a request when there are no pending requests!");
-        } else {
-            N33ble1State.sendIntent(context, N33ble1State.ChangeReceived);
-            changeRequest.complete();
-            doNextChangeRequest();
+    private void onChangeRequestResult(UUID uuid, int status) {
+        if(changeScheduler.onResult(uuid, status == BluetoothGatt.GATT_SUCCESS)) {
+            final int character = N33ble1Profile.indexOf(uuid);
+            if(character == N33ble1Profile.ButtonLeftHandled || character == N33ble1Profile.ButtonRightHandled) {
+                linkTuner.onButtonAcked();
+            }
+            N33ble1State.sendEvent(N33ble1State.ChangeReceived);
         }
     }
 
     private final Context context;
     private BluetoothGatt gatt = null;
-    private final LinkedList<ChangeRequest> changeRequests = new LinkedList<>();
+    private N33ble1Profile profile = null; // Null until services are discovered.
+    private CharacterValueListener characterValueListener = null;
+    private final N33ble1GattScheduler changeScheduler = new N33ble1GattScheduler();
+    private final N33ble1LinkTuner linkTuner = new N33ble1LinkTuner();
 
     N33ble1BluetoothGattCallback(Context applicationContext) {
         this.context = applicationContext;
     }
 
-    private BluetoothGattService getCbService() throws NullBleComponentException {
-        if(gatt == null) {
-            throw new NullBleComponentException("BluetoothGatt has not yet been set.");
+    /**
+     * @param character One of N33ble1Profile's characters.
+     */
+    public BluetoothGattCharacteristic getCharacter(int character) throws NullBleComponentException {
+        if(profile == null) {
+            throw new NullBleComponentException("N33ble1's services are not discovered, is N33ble1 disconnected?");
         }
-
-        final BluetoothGattService cbService =
-                gatt.getService(UUID.fromString(Constants.CbServiceUuid));
-        if (cbService == null) {
-            throw new NullBleComponentException("CbService is null, is N33ble1 disconnected?");
-        }
-        return cbService;
+        return profile.get(character);
     }
 
-    public BluetoothGattCharacteristic getCharacter(String uuid) throws NullBleComponentException {
-        final BluetoothGattCharacteristic character =
-                getCbService().getCharacteristic(UUID.fromString(uuid));
-        if(character == null) {
-            throw new NullBleComponentException("Character from uuid '" + uuid + "' is null, is N33ble1 malformed?");
-        }
-        return character;
-    }
-
-    public BluetoothGattCharacteristic getBoardLedCharacter() throws NullBleComponentException { return getCharacter(Constants.BoardLedCharUuid); }
-    public BluetoothGattCharacteristic getButtonLeftCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonLeftCharUuid); }
-    public BluetoothGattCharacteristic getButtonRightCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonRightCharUuid); }
-    public BluetoothGattCharacteristic getButtonLeftHandledCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonLeftHandledCharUuid); }
-    public BluetoothGattCharacteristic getButtonRightHandledCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonRightHandledCharUuid); }
-    public BluetoothGattCharacteristic getButtonLeftLedCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonLeftLedCharUuid); }
-    public BluetoothGattCharacteristic getButtonRightLedCharacter() throws NullBleComponentException { return getCharacter(Constants.ButtonRightLedCharUuid); }
+    public BluetoothGattCharacteristic getBoardLedCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.BoardLed); }
+    public BluetoothGattCharacteristic getButtonLeftCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonLeft); }
+    public BluetoothGattCharacteristic getButtonRightCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonRight); }
+    public BluetoothGattCharacteristic getButtonLeftHandledCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonLeftHandled); }
+    public BluetoothGattCharacteristic getButtonRightHandledCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonRightHandled); }
+    public BluetoothGattCharacteristic getButtonLeftLedCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonLeftLed); }
+    public BluetoothGattCharacteristic getButtonRightLedCharacter() throws NullBleComponentException { return getCharacter(N33ble1Profile.ButtonRightLed); }
 
     // TODO need to verify that we are on the main ui thread (or add concurrency checks)
     //      Looper.getMainLooper().getThread() == Thread.currentThread()
@@ -186,17 +244,17 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
         gatt.setCharacteristicNotification(character, true);
 
         final BluetoothGattDescriptor descriptor =
-                character.getDescriptor(UUID.fromString(Constants.ClientCharacteristicConfiguration));
+                character.getDescriptor(N33ble1Profile.ClientCharacteristicConfigurationUuid);
         if(descriptor == null) {
             Log.e(LOG_TAG, "When registering for notifications, descriptor is null from a non-null character!");
-            N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
+            N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
             return false;
         }
 
         if(!descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
             // Is the provided character supporting notifications?
             Log.e(LOG_TAG, "Unable to set ENABLE_NOTIFICATION_VALUE on descriptor!");
-            N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
+            N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
             return false;
         }
 
@@ -231,14 +289,20 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
                     Log.e(LOG_TAG, "BluetoothGatt encountered error on connection state change: " + status);
                 }
 
-                N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
+                changeScheduler.cancelAll();
+                linkTuner.onDisconnected();
+                profile = null;
+                N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
                 return;
             }
 
             switch (newState) {
                 case BluetoothProfile.STATE_DISCONNECTED:
                     Log.i(LOG_TAG, "Disconnected from N33ble1");
-                    N33ble1State.sendIntent(context, N33ble1State.DeviceDisconnected);
+                    changeScheduler.cancelAll();
+                    linkTuner.onDisconnected();
+                    profile = null;
+                    N33ble1State.sendEvent(N33ble1State.DeviceDisconnected);
                     break;
 
                 case BluetoothProfile.STATE_CONNECTING:
@@ -247,13 +311,17 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
 
                 case BluetoothProfile.STATE_CONNECTED:
                     Log.i(LOG_TAG, "Connected to N33ble1");
-                    N33ble1State.sendIntent(context, N33ble1State.DeviceConnected);
-
-                    try {
-                        gatt.discoverServices();
-                    } catch (SecurityException e) {
-                        N33ble1State.sendAndLogBluetoothPermissionError(context, LOG_TAG, "onConnectionStateChange");
-                    }
+                    N33ble1State.sendEvent(N33ble1State.DeviceConnected);
+
+                    // Services are discovered once the MTU is settled, as only one GATT operation
+                    // may be outstanding.
+                    linkTuner.onConnected(gatt, () -> {
+                        try {
+                            gatt.discoverServices();
+                        } catch (SecurityException e) {
+                            N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "onConnectionStateChange");
+                        }
+                    });
                     break;
 
                 case BluetoothProfile.STATE_DISCONNECTING:
@@ -273,11 +341,13 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
 
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 Log.w(LOG_TAG, "BluetoothGatt encountered error when discovering services: " + status);
-                N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
+                N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
                 return;
             }
 
             try {
+                profile = N33ble1Profile.resolve(gatt);
+
                 // Register for character change notifications for the button characters.
                 if(!registerForNotifications(getButtonLeftCharacter()) || !registerForNotifications(getButtonRightCharacter())) {
                     // TODO try again? above too
@@ -290,28 +360,28 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
                 // This intent will trigger N33ble1MonitorBleEventHandler to send read requests and
                 // make some change requests.
                 Log.i(LOG_TAG, "N33ble1 BluetoothGatt Ready");
-                N33ble1State.sendIntent(context, N33ble1State.BluetoothGattReady);
+                linkTuner.onGattReady();
+                N33ble1State.sendEvent(N33ble1State.BluetoothGattReady);
 
             } catch (NullBleComponentException e) {
                 Log.e(LOG_TAG, e.getMessage());
-                N33ble1State.sendIntent(context, N33ble1State.BluetoothGattError);
+                N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
             } catch (SecurityException e) {
-                N33ble1State.sendAndLogBluetoothPermissionError(context, LOG_TAG, "onServicesDiscovered");
+                N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "onServicesDiscovered");
             }
         });
     }
 
     @Override
     public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic,
-                                     int status) {
+                                     byte[] value, int status) {
         context.getMainExecutor().execute(() -> {
             ensureGattMatch(gatt);
             Log.d(LOG_TAG, "Character read - uuid: " + characteristic.getUuid() + " status: " + status);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                completeChangeRequest();
-            } else {
-                retryChangeRequest();
+                onCharacterValue(characteristic, value);
             }
+            onChangeRequestResult(characteristic.getUuid(), status);
         });
     }
 
@@ -321,21 +391,20 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
         context.getMainExecutor().execute(() -> {
             ensureGattMatch(gatt);
             Log.d(LOG_TAG, "Character written - uuid: " + characteristic.getUuid() + " status: " + status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                completeChangeRequest();
-            } else {
-                retryChangeRequest();
-            }
+            onChangeRequestResult(characteristic.getUuid(), status);
         });
     }
 
     @Override
     public void onCharacteristicChanged(BluetoothGatt gatt,
-                                        BluetoothGattCharacteristic characteristic) {
+                                        BluetoothGattCharacteristic characteristic, byte[] value) {
         context.getMainExecutor().execute(() -> {
             ensureGattMatch(gatt);
             Log.d(LOG_TAG, "Character changed - uuid: " + characteristic.getUuid());
-            N33ble1State.sendIntent(context, N33ble1State.ChangeReceived);
+            // Only the button characteristics notify.
+            linkTuner.onButtonNotification();
+            onCharacterValue(characteristic, value);
+            N33ble1State.sendEvent(N33ble1State.ChangeReceived);
         });
     }
 
@@ -354,11 +423,7 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
         context.getMainExecutor().execute(() -> {
             ensureGattMatch(gatt);
             Log.d(LOG_TAG, "Descriptor written: uuid " + descriptor.getUuid() + " status: " + status);
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                completeChangeRequest();
-            } else {
-                retryChangeRequest();
-            }
+            onChangeRequestResult(descriptor.getUuid(), status);
         });
     }
 
@@ -370,15 +435,37 @@ public class N33ble1BluetoothGattCallback extends BluetoothGattCallback {
         });
     }
 
+    @Override
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+        context.getMainExecutor().execute(() -> {
+            ensureGattMatch(gatt);
+            linkTuner.onMtuChanged(mtu, status);
+        });
+    }
+
+    /**
+     * Hidden from the SDK, but BluetoothGatt calls it on every connection parameter update, so
+     * overriding it by signature is the only way to learn the negotiated interval.
+     */
+    @SuppressWarnings("unused")
+    public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout,
+                                    int status) {
+        context.getMainExecutor().execute(() -> {
+            ensureGattMatch(gatt);
+            linkTuner.onConnectionUpdated(interval, latency, timeout, status);
+        });
+    }
+
     @Override
     public void onServiceChanged(BluetoothGatt gatt) {
         context.getMainExecutor().execute(() -> {
             ensureGattMatch(gatt);
             Log.i(LOG_TAG, "Service changed, rediscovering.");
+            profile = null;
             try {
                 gatt.discoverServices();
             } catch (SecurityException e) {
-                N33ble1State.sendAndLogBluetoothPermissionError(context, LOG_TAG, "onServiceChanged");
+                N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "onServiceChanged");
             }
         });
     }
@@ -36,7 +36,9 @@ public class N33ble1CompanionService extends CompanionDeviceService {
         }
         Log.i(LOG_TAG, "N33ble1 appeared");
 
-        startService(new Intent(getApplicationContext(), N33ble1MonitorService.class));
+        // N33ble1 is advertising right now, so the monitor service can connect directly.
+        startService(new Intent(getApplicationContext(), N33ble1MonitorService.class)
+                .putExtra(N33ble1MonitorService.ExtraDeviceAppeared, true));
     }
 
     @Override
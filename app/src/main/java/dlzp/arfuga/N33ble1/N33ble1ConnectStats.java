@@ -0,0 +1,64 @@
+package dlzp.arfuga.N33ble1;
+
+import dlzp.arfuga.Durations;
+
+/**
+ * Time from starting a connection to N33ble1 until it is connected, for each way of connecting, to
+ * compare them. A direct connection that falls back to autoConnect is kept apart from both, so it
+ * doesn't add the direct deadline to autoConnect's times.
+ *
+ * Only used on the main thread.
+ */
+class N33ble1ConnectStats {
+    // Connects right away while N33ble1 is known to be advertising, given up on after a deadline.
+    static final int StrategyDirect = 0;
+    // Background connection that waits for N33ble1 however long it takes, and reconnects.
+    static final int StrategyAutoConnect = 1;
+    // Direct, then autoConnect after it failed or missed its deadline; timed from the direct start.
+    static final int StrategyFallback = 2;
+    private static final int StrategyCount = 3;
+
+    private static final String[] StrategyNames = {
+            "direct", "autoConnect", "direct then autoConnect" };
+
+    private final int[] attempts = new int[StrategyCount];
+    private final int[] connections = new int[StrategyCount];
+    private final long[] totalConnectNs = new long[StrategyCount];
+    private final long[] minConnectNs = new long[StrategyCount];
+    private final long[] maxConnectNs = new long[StrategyCount];
+
+    static String describeStrategy(int strategy) {
+        return StrategyNames[strategy];
+    }
+
+    void onAttempt(int strategy) {
+        attempts[strategy]++;
+    }
+
+    void onConnected(int strategy, long connectNs) {
+        minConnectNs[strategy] = connections[strategy] == 0 ? connectNs : Math.min(minConnectNs[strategy], connectNs);
+        maxConnectNs[strategy] = Math.max(maxConnectNs[strategy], connectNs);
+        totalConnectNs[strategy] += connectNs;
+        connections[strategy]++;
+    }
+
+    String getStatsDescription() {
+        final StringBuilder description = new StringBuilder();
+        for(int strategy = 0; strategy < StrategyCount; strategy++) {
+            if(strategy > 0) {
+                description.append('\n');
+            }
+            description.append(StrategyNames[strategy]).append(" connect: ");
+            if(connections[strategy] == 0) {
+                description.append("no samples (").append(attempts[strategy]).append(" attempts)");
+                continue;
+            }
+            description.append("avg ").append(Durations.formatMs(totalConnectNs[strategy] / connections[strategy]))
+                    .append(", min ").append(Durations.formatMs(minConnectNs[strategy]))
+                    .append(", max ").append(Durations.formatMs(maxConnectNs[strategy]))
+                    .append(" (").append(connections[strategy]).append(" of ")
+                    .append(attempts[strategy]).append(" attempts)");
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package dlzp.arfuga.N33ble1;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Published on ArfugaApp's EventBus whenever something happens to the N33ble1 connection. The
+ * action is one of N33ble1State's action constants.
+ */
+public final class N33ble1Event {
+    public final String action;
+
+    N33ble1Event(String action) {
+        this.action = action;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return action;
+    }
+}
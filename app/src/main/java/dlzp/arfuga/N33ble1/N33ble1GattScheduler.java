@@ -0,0 +1,371 @@
+package dlzp.arfuga.N33ble1;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import dlzp.arfuga.Durations;
+
+/**
+ * Runs the ChangeRequests of N33ble1BluetoothGattCallback one at a time, as BluetoothGatt only
+ * allows a single outstanding operation.
+ *
+ * Queued requests run by priority class, then in the order they were added: button presses first
+ * (handled acks and enabling button notifications), because the user is waiting on them, then
+ * reads, then LED and board writes.
+ *
+ * A request whose result doesn't arrive within OperationTimeoutMs is recorded as a stall and
+ * treated as failed, so a lost callback can't block the queue. Failed requests are retried after a
+ * backoff that doubles from InitialBackoffMs up to MaxBackoffMs, letting other requests run
+ * meanwhile, unless a newer write to the same characteristic has made them stale, in which case
+ * they are evicted.
+ *
+ * As results only carry the uuid, nothing else for the uuid of a stalled request is started for
+ * another OperationTimeoutMs, so a late result can only belong to the stalled attempt rather than
+ * be taken for the result of its retry. A late success completes the request after all.
+ *
+ * A request is given up on after MaxAttempts. Only giving up on a button press resets the
+ * connection, as N33ble1 can't report presses until they are acknowledged; other requests are
+ * dropped and the connection is kept. Completion runnables only run for requests that succeeded.
+ *
+ * A LED or board write replaces a write to the same characteristic that hasn't been sent yet, so
+ * a burst of LED changes costs one round trip for the newest value instead of one per stale value.
+ *
+ * Only used on the main thread, where the GATT callbacks are processed.
+ */
+class N33ble1GattScheduler {
+    private static final String LOG_TAG = "N33ble1GattScheduler";
+    private static final int MaxAttempts = 6;
+    private static final long OperationTimeoutMs = 5 * 1000;
+    private static final long InitialBackoffMs = 100;
+    private static final long MaxBackoffMs = 3200;
+
+    static final int PriorityButton = 0;
+    static final int PriorityRead = 1;
+    static final int PriorityWrite = 2;
+    private static final int PriorityCount = 3;
+
+    private static final String[] PriorityNames = { "button", "read", "write" };
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable runNextRunnable = this::runNext;
+    private final Runnable timeoutRunnable = this::onTimeout;
+    private final ArrayList<N33ble1BluetoothGattCallback.ChangeRequest> pending = new ArrayList<>();
+    private N33ble1BluetoothGattCallback.ChangeRequest inFlight = null;
+    // Stalled requests whose result may still arrive, by uuid.
+    private final Map<UUID, N33ble1BluetoothGattCallback.ChangeRequest> stalled = new HashMap<>();
+    private long nextSequence = 0;
+
+    // Indexed by priority.
+    private final long[] completed = new long[PriorityCount];
+    private final long[] totalLatencyNs = new long[PriorityCount]; // Added until completed.
+    private final long[] maxLatencyNs = new long[PriorityCount];
+    private final long[] totalOperationNs = new long[PriorityCount]; // The successful attempt only.
+    private int retries = 0;
+    private int stalls = 0;
+    private int lateResults = 0;
+    private long lastStallNs = 0;
+    private UUID lastStallUuid = null;
+    private int evicted = 0;
+    private int failed = 0;
+    private int cancelled = 0;
+    private int elided = 0;
+    private int maxQueueDepth = 0;
+
+    void add(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        final long nowNs = System.nanoTime();
+        request.sequence = nextSequence++;
+        request.addedNs = nowNs;
+        request.notBeforeNs = nowNs;
+
+        if(request.isCoalescable() && replacePending(request)) {
+            elided++;
+            runNext();
+            return;
+        }
+
+        pending.add(request);
+        maxQueueDepth = Math.max(maxQueueDepth, getQueueDepth());
+        runNext();
+    }
+
+    /**
+     * Puts the request in place of a coalescable one for the same characteristic that is still
+     * queued, keeping its place in the queue, its backoff, and its attempts so far.
+     * @return False if there is none to replace.
+     */
+    private boolean replacePending(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        for(int i = 0; i < pending.size(); i++) {
+            final N33ble1BluetoothGattCallback.ChangeRequest replaced = pending.get(i);
+            if(!replaced.isCoalescable() || !replaced.getUuid().equals(request.getUuid())) {
+                continue;
+            }
+
+            request.sequence = replaced.sequence;
+            request.addedNs = replaced.addedNs;
+            request.notBeforeNs = replaced.notBeforeNs;
+            request.attempts = replaced.attempts;
+            pending.set(i, request);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called with the result of the operation on the characteristic or descriptor with the uuid.
+     * @return True if it completed a request, false if it failed or is for no request in flight.
+     */
+    boolean onResult(UUID uuid, boolean success) {
+        final N33ble1BluetoothGattCallback.ChangeRequest stalledRequest = stalled.remove(uuid);
+        if(stalledRequest != null) {
+            // Nothing else for the uuid has been started since it stalled.
+            return onLateResult(stalledRequest, success);
+        }
+        if(inFlight == null || !inFlight.getUuid().equals(uuid)) {
+            Log.w(LOG_TAG, "Ignoring result for " + uuid + " which is not in flight");
+            return false;
+        }
+
+        handler.removeCallbacks(timeoutRunnable);
+        final N33ble1BluetoothGattCallback.ChangeRequest request = inFlight;
+        inFlight = null;
+
+        if(success) {
+            onSucceeded(request);
+        } else {
+            retryOrGiveUp(request);
+        }
+
+        runNext();
+        return success;
+    }
+
+    /**
+     * The result of a request that stalled arrived after all. A success completes it if it is
+     * still waiting to be retried; a failure changes nothing, as it is already being retried.
+     */
+    private boolean onLateResult(N33ble1BluetoothGattCallback.ChangeRequest request, boolean success) {
+        lateResults++;
+        Log.i(LOG_TAG, "Late result for stalled " + request.getUuid() + ", success: " + success);
+        final boolean completes = success && pending.remove(request);
+        if(completes) {
+            onSucceeded(request);
+        }
+        runNext();
+        return completes;
+    }
+
+    private void onSucceeded(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        final long nowNs = System.nanoTime();
+        final int priority = request.priority;
+        completed[priority]++;
+        totalLatencyNs[priority] += nowNs - request.addedNs;
+        maxLatencyNs[priority] = Math.max(maxLatencyNs[priority], nowNs - request.addedNs);
+        totalOperationNs[priority] += nowNs - request.startedNs;
+        request.complete();
+    }
+
+    /**
+     * Drops queued requests and forgets the one in flight, e.g. on disconnection, when none of
+     * them can complete anymore. Their completion runnables are not run.
+     */
+    void cancelAll() {
+        final int dropped = getQueueDepth();
+        if(dropped > 0) {
+            Log.i(LOG_TAG, "Cancelling " + dropped + " change requests");
+        }
+        cancelled += dropped;
+        pending.clear();
+        stalled.clear();
+        inFlight = null;
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    int getQueueDepth() {
+        return pending.size() + (inFlight == null ? 0 : 1);
+    }
+
+    String getStatsDescription() {
+        final StringBuilder description = new StringBuilder()
+                .append("queue depth: ").append(getQueueDepth())
+                .append(" (max ").append(maxQueueDepth).append(')')
+                .append(", retries: ").append(retries)
+                .append(", stalls: ").append(stalls)
+                .append(", late results: ").append(lateResults)
+                .append(", failed: ").append(failed)
+                .append(", cancelled: ").append(cancelled)
+                .append(", elided writes: ").append(elided)
+                .append(", evicted: ").append(evicted);
+        if(lastStallUuid != null) {
+            description.append("\nlast stall: ").append(lastStallUuid).append(", ")
+                    .append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - lastStallNs))
+                    .append("s ago");
+        }
+
+        for(int priority = 0; priority < PriorityCount; priority++) {
+            description.append('\n').append(PriorityNames[priority]).append(": ");
+            if(completed[priority] == 0) {
+                description.append("no samples");
+                continue;
+            }
+            description.append("avg ").append(Durations.formatMs(totalLatencyNs[priority] / completed[priority]))
+                    .append(", max ").append(Durations.formatMs(maxLatencyNs[priority]))
+                    .append(", gatt avg ").append(Durations.formatMs(totalOperationNs[priority] / completed[priority]))
+                    .append(" (n=").append(completed[priority]).append(')');
+        }
+        return description.toString();
+    }
+
+
+    private void runNext() {
+        handler.removeCallbacks(runNextRunnable);
+        while(inFlight == null) {
+            final long nowNs = System.nanoTime();
+            final N33ble1BluetoothGattCallback.ChangeRequest request = pollNextDue(nowNs);
+            if(request == null) {
+                scheduleNextDue(nowNs);
+                return;
+            }
+
+            request.attempts++;
+            switch (request.start()) {
+                case N33ble1BluetoothGattCallback.ChangeRequest.StartStarted:
+                    inFlight = request;
+                    request.startedNs = nowNs;
+                    handler.postDelayed(timeoutRunnable, OperationTimeoutMs);
+                    break;
+
+                case N33ble1BluetoothGattCallback.ChangeRequest.StartBusy:
+                    retryOrGiveUp(request);
+                    break;
+
+                default:
+                    // Can never succeed, e.g. missing permissions, so isn't retried.
+                    failed++;
+            }
+        }
+    }
+
+    /**
+     * @return The request that should run next of those whose backoff has passed, or null.
+     */
+    private N33ble1BluetoothGattCallback.ChangeRequest pollNextDue(long nowNs) {
+        // A stalled result that hasn't arrived by now is taken as lost.
+        final Iterator<N33ble1BluetoothGattCallback.ChangeRequest> stalledRequests = stalled.values().iterator();
+        while(stalledRequests.hasNext()) {
+            if(stalledRequests.next().lateResultUntilNs - nowNs <= 0) {
+                stalledRequests.remove();
+            }
+        }
+
+        int nextIndex = -1;
+        for(int i = 0; i < pending.size(); i++) {
+            final N33ble1BluetoothGattCallback.ChangeRequest request = pending.get(i);
+            if(getDueNs(request) - nowNs > 0) {
+                continue;
+            }
+            if(nextIndex == -1 || runsBefore(request, pending.get(nextIndex))) {
+                nextIndex = i;
+            }
+        }
+        return nextIndex == -1 ? null : pending.remove(nextIndex);
+    }
+
+    private static boolean runsBefore(N33ble1BluetoothGattCallback.ChangeRequest request,
+                                      N33ble1BluetoothGattCallback.ChangeRequest other) {
+        if(request.priority != other.priority) {
+            return request.priority < other.priority;
+        }
+        return request.sequence < other.sequence;
+    }
+
+    /**
+     * Wakes up when the first of the requests waiting out a backoff is due.
+     */
+    private void scheduleNextDue(long nowNs) {
+        if(pending.isEmpty()) {
+            return;
+        }
+
+        long firstDueNs = getDueNs(pending.get(0));
+        for(N33ble1BluetoothGattCallback.ChangeRequest request : pending) {
+            if(getDueNs(request) - firstDueNs < 0) {
+                firstDueNs = getDueNs(request);
+            }
+        }
+        handler.postDelayed(runNextRunnable,
+                Math.max(1, TimeUnit.NANOSECONDS.toMillis(firstDueNs - nowNs)));
+    }
+
+    /**
+     * @return When the request may start: once its backoff has passed, and no late result of a
+     * stalled request for the same uuid can arrive anymore.
+     */
+    private long getDueNs(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        final N33ble1BluetoothGattCallback.ChangeRequest stalledRequest = stalled.get(request.getUuid());
+        if(stalledRequest == null || stalledRequest.lateResultUntilNs - request.notBeforeNs <= 0) {
+            return request.notBeforeNs;
+        }
+        return stalledRequest.lateResultUntilNs;
+    }
+
+    private boolean isSuperseded(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        if(!request.isCoalescable()) {
+            return false;
+        }
+        for(N33ble1BluetoothGattCallback.ChangeRequest queued : pending) {
+            if(queued.isCoalescable() && queued.getUuid().equals(request.getUuid())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onTimeout() {
+        final N33ble1BluetoothGattCallback.ChangeRequest request = inFlight;
+        if(request == null) {
+            return;
+        }
+
+        Log.w(LOG_TAG, "Stalled: no result for " + request.getUuid() + " after " + OperationTimeoutMs + "ms");
+        stalls++;
+        lastStallNs = System.nanoTime();
+        lastStallUuid = request.getUuid();
+        request.lateResultUntilNs = lastStallNs + TimeUnit.MILLISECONDS.toNanos(OperationTimeoutMs);
+        stalled.put(request.getUuid(), request);
+        inFlight = null;
+        retryOrGiveUp(request);
+        runNext();
+    }
+
+    private void retryOrGiveUp(N33ble1BluetoothGattCallback.ChangeRequest request) {
+        if(isSuperseded(request)) {
+            Log.d(LOG_TAG, "Evicting write to " + request.getUuid() + ", a newer one is queued");
+            evicted++;
+            return;
+        }
+
+        if(request.attempts >= MaxAttempts) {
+            failed++;
+            if(request.priority == PriorityButton) {
+                Log.w(LOG_TAG, "Button change request reached maximum attempts, resetting connection.");
+                N33ble1State.sendEvent(N33ble1State.BluetoothGattError);
+            } else {
+                Log.w(LOG_TAG, "Change request reached maximum attempts, dropping it.");
+            }
+            return;
+        }
+
+        retries++;
+        final long backoffMs = Math.min(InitialBackoffMs << (request.attempts - 1), MaxBackoffMs);
+        request.notBeforeNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+        pending.add(request);
+    }
+}
@@ -0,0 +1,210 @@
+package dlzp.arfuga.N33ble1;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import dlzp.arfuga.Durations;
+
+/**
+ * Tunes the BLE link to N33ble1 for what is going on: a high priority (short connection interval)
+ * from connecting until the initial sync is done, and again for ButtonWindowMs after every button
+ * notification so the handled ack and LED writes go out quickly; low power the rest of the time,
+ * which is nearly always, as N33ble1 stays connected while in range.
+ *
+ * Also negotiates the MTU before services are discovered, and keeps the negotiated connection
+ * parameters, the time from connecting to ready, and the latency from a button notification to
+ * its handled ack for each connection priority the press arrived in.
+ *
+ * Only used on the main thread, where the GATT callbacks are processed.
+ */
+class N33ble1LinkTuner {
+    private static final String LOG_TAG = "N33ble1LinkTuner";
+    private static final int DesiredMtu = 247; // Fills one data length extended packet.
+    private static final long MtuTimeoutMs = 2 * 1000;
+    private static final long ButtonWindowMs = 5 * 1000;
+
+    // Indexed by BluetoothGatt.CONNECTION_PRIORITY_*.
+    private static final String[] PriorityNames = { "balanced", "high", "low power" };
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable lowPowerRunnable = () -> setPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+    private final Runnable mtuTimeoutRunnable = this::settleMtu;
+    private BluetoothGatt gatt = null;
+    private int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private Runnable onMtuSettled = null;
+    private long connectedNs = 0;
+    private long pressNs = 0;
+    private int pressPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    private int mtu = 23; // The default until negotiated.
+    private double intervalMs = 0;
+    private int peripheralLatency = 0;
+    private int supervisionTimeoutMs = 0;
+    private int priorityRequests = 0;
+    private int readyCount = 0;
+    private long totalReadyNs = 0;
+    private long lastReadyNs = 0;
+    private final long[] acks = new long[PriorityNames.length];
+    private final long[] totalAckNs = new long[PriorityNames.length];
+    private final long[] maxAckNs = new long[PriorityNames.length];
+
+    /**
+     * Boosts the link for the initial sync and negotiates the MTU.
+     * @param onMtuSettled Run once the MTU is negotiated, or not going to be, to go on with the
+     *                     connection, as no other GATT operation may run meanwhile.
+     */
+    void onConnected(BluetoothGatt gatt, Runnable onMtuSettled) {
+        this.gatt = gatt;
+        connectedNs = System.nanoTime();
+        pressNs = 0;
+        handler.removeCallbacksAndMessages(null);
+        // The new connection starts out with the system's default parameters.
+        priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+
+        mtu = 23;
+        this.onMtuSettled = onMtuSettled;
+        try {
+            if(gatt.requestMtu(DesiredMtu)) {
+                handler.postDelayed(mtuTimeoutRunnable, MtuTimeoutMs);
+                return;
+            }
+            Log.w(LOG_TAG, "Unable to request an MTU of " + DesiredMtu);
+        } catch (SecurityException e) {
+            N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "onConnected");
+        }
+        settleMtu();
+    }
+
+    void onMtuChanged(int mtu, int status) {
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            Log.i(LOG_TAG, "Negotiated MTU " + mtu);
+            this.mtu = mtu;
+        } else {
+            Log.w(LOG_TAG, "MTU negotiation failed: " + status);
+        }
+        settleMtu();
+    }
+
+    private void settleMtu() {
+        handler.removeCallbacks(mtuTimeoutRunnable);
+        final Runnable settled = onMtuSettled;
+        onMtuSettled = null;
+        if(settled != null) {
+            settled.run();
+        }
+    }
+
+    /**
+     * The initial sync has been queued; let it finish at high priority, then drop to low power.
+     */
+    void onGattReady() {
+        if(connectedNs != 0) {
+            lastReadyNs = System.nanoTime() - connectedNs;
+            totalReadyNs += lastReadyNs;
+            readyCount++;
+            connectedNs = 0;
+        }
+        boost();
+    }
+
+    void onButtonNotification() {
+        if(pressNs == 0) {
+            pressNs = System.nanoTime();
+            pressPriority = priority;
+        }
+        boost();
+    }
+
+    void onButtonAcked() {
+        if(pressNs == 0) {
+            return;
+        }
+        final long ackNs = System.nanoTime() - pressNs;
+        pressNs = 0;
+        acks[pressPriority]++;
+        totalAckNs[pressPriority] += ackNs;
+        maxAckNs[pressPriority] = Math.max(maxAckNs[pressPriority], ackNs);
+    }
+
+    /**
+     * Called with the parameters the controller settled on, in its units: 1.25ms for the
+     * interval and 10ms for the supervision timeout.
+     */
+    void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        if(status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(LOG_TAG, "Connection update failed: " + status);
+            return;
+        }
+        intervalMs = interval * 1.25;
+        peripheralLatency = latency;
+        supervisionTimeoutMs = timeout * 10;
+        Log.d(LOG_TAG, "Connection interval " + intervalMs + "ms, latency " + latency +
+                ", supervision timeout " + supervisionTimeoutMs + "ms");
+    }
+
+    void onDisconnected() {
+        handler.removeCallbacksAndMessages(null);
+        onMtuSettled = null;
+        connectedNs = 0;
+        pressNs = 0;
+        priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    }
+
+    private void boost() {
+        setPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        handler.removeCallbacks(lowPowerRunnable);
+        handler.postDelayed(lowPowerRunnable, ButtonWindowMs);
+    }
+
+    private void setPriority(int newPriority) {
+        if(gatt == null || newPriority == priority) {
+            return;
+        }
+
+        try {
+            if(gatt.requestConnectionPriority(newPriority)) {
+                Log.d(LOG_TAG, "Requested " + PriorityNames[newPriority] + " connection priority");
+                priority = newPriority;
+                priorityRequests++;
+            } else {
+                Log.w(LOG_TAG, "Unable to request " + PriorityNames[newPriority] + " connection priority");
+            }
+        } catch (SecurityException e) {
+            N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "setPriority");
+        }
+    }
+
+    String getStatsDescription() {
+        final StringBuilder description = new StringBuilder()
+                .append("priority: ").append(PriorityNames[priority])
+                .append(" (").append(priorityRequests).append(" requests)")
+                .append(", mtu: ").append(mtu)
+                .append(", interval: ").append(intervalMs).append("ms")
+                .append(", latency: ").append(peripheralLatency)
+                .append(", supervision timeout: ").append(supervisionTimeoutMs).append("ms");
+
+        description.append("\ntime to ready: ");
+        if(readyCount == 0) {
+            description.append("no samples");
+        } else {
+            description.append("last ").append(Durations.formatMs(lastReadyNs))
+                    .append(", avg ").append(Durations.formatMs(totalReadyNs / readyCount))
+                    .append(" (n=").append(readyCount).append(')');
+        }
+
+        for(int i = 0; i < PriorityNames.length; i++) {
+            description.append("\nack after press in ").append(PriorityNames[i]).append(": ");
+            if(acks[i] == 0) {
+                description.append("no samples");
+                continue;
+            }
+            description.append("avg ").append(Durations.formatMs(totalAckNs[i] / acks[i]))
+                    .append(", max ").append(Durations.formatMs(maxAckNs[i]))
+                    .append(" (n=").append(acks[i]).append(')');
+        }
+        return description.toString();
+    }
+}
@@ -1,23 +1,24 @@
 package dlzp.arfuga.N33ble1;
 
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import androidx.lifecycle.LifecycleOwner;
-
+import java.util.Arrays;
 import java.util.function.Consumer;
 
 import dlzp.arfuga.ArfugaApp;
 import dlzp.arfuga.Constants;
+import dlzp.arfuga.EventBus;
+import dlzp.arfuga.data.GaragePiStatus;
 
 /**
- * This specifically handles ChangeReceived intent-actions that N33ble1MonitorService receives.
- * Based on BLE characteristics changed, this will perform the action necessary. For example, when a
- * button press has been confirmed, this will signal to the necessary components or clients to
- * perform the action the user expects when the button is pressed.
+ * This specifically handles the button characteristic values that N33ble1BluetoothGattCallback
+ * reads or is notified of, which it hands over directly. Based on BLE characteristics changed, this
+ * will perform the action necessary. For example, when a button press has been confirmed, this will
+ * signal to the necessary components or clients to perform the action the user expects when the
+ * button is pressed.
  *
  * TODO Assess this for improvements. There is no second-button functionality right now. This may
  *      need a better connection to the UI.
@@ -25,17 +26,44 @@ import dlzp.arfuga.Constants;
 public class N33ble1MonitorBleEventHandler {
     private static final String LOG_TAG = "N33ble1MonitorBleEventHandler";
 
-    private final Context context;
     private final N33ble1BluetoothGattCallback bluetoothGattCallback;
     private final Handler handlerLedLeft = new Handler(Looper.getMainLooper());
+    private final EventBus.Subscription<GaragePiStatus> garagePiStatusSubscription;
+
+    // The latest read or notified value of each character, indexed by N33ble1Profile character.
+    private final byte[][] values = new byte[N33ble1Profile.CharacterCount][];
 
-    // If LifecycleOwner is needed in the future, re-add it as argument from N33ble1MonitorService.
-    N33ble1MonitorBleEventHandler(Context applicationContext, N33ble1BluetoothGattCallback bluetoothGattCallback) {
-        this.context = applicationContext;
+    // The door-moving command last sent by a button press, until its outcome is known.
+    private String awaitedGaragePiCommand = null;
+
+    N33ble1MonitorBleEventHandler(N33ble1BluetoothGattCallback bluetoothGattCallback) {
         this.bluetoothGattCallback = bluetoothGattCallback;
+        bluetoothGattCallback.setCharacterValueListener(this::onCharacterValue);
+
+        // Every status is delivered, unlike LiveData which may skip to the latest one and lose
+        // the outcome of an awaited command.
+        garagePiStatusSubscription = ArfugaApp.getEventBus()
+                .subscribe(GaragePiStatus.class, Looper.getMainLooper(), this::onGaragePiStatusChanged);
+    }
+
+    /**
+     * Stops reacting to N33ble1 values and GaragePi status changes, for when this handler is
+     * replaced.
+     */
+    public void release() {
+        bluetoothGattCallback.setCharacterValueListener(null);
+        ArfugaApp.getEventBus().unsubscribe(garagePiStatusSubscription);
+        handlerLedLeft.removeCallbacksAndMessages(null);
     }
 
     public void onBluetoothGattReady() {
+        // Retries the pre-warm from DeviceConnected in case it failed, or refreshes its idle
+        // budget.
+        ArfugaApp.getDLZPServerClient().prewarmGaragePi();
+
+        // Values from before a reconnection may be stale.
+        Arrays.fill(values, null);
+
         try {
             // Read initial values of button and buttonHandled characters.
             bluetoothGattCallback.addChangeRequest(bluetoothGattCallback.new ChangeRequest(bluetoothGattCallback.getButtonLeftCharacter(), false));
@@ -48,110 +76,133 @@ public class N33ble1MonitorBleEventHandler {
             setButtonLed(false, Constants.LedTimingIgnore, 0, 0, 0);
 
             // Set board rgb led to blue when first connecting.
-            byte[] lights = new byte[]{(byte) 0, (byte) 0, (byte) 0, (byte) 255};
-            BluetoothGattCharacteristic boardLed = bluetoothGattCallback.getBoardLedCharacter();
-            boardLed.setValue(lights);
+            final BluetoothGattCharacteristic boardLed = bluetoothGattCallback.getBoardLedCharacter();
+            boardLed.setValue(N33ble1Profile.encodeBoardLed((byte) 0, 0, 0, 255));
             bluetoothGattCallback.addChangeRequest(bluetoothGattCallback.new ChangeRequest(boardLed, true));
         } catch (N33ble1BluetoothGattCallback.NullBleComponentException e) {
             Log.e(LOG_TAG, e.getMessage());
-            N33ble1State.sendIntent(context, N33ble1State.BleServiceError);
+            N33ble1State.sendEvent(N33ble1State.BleServiceError);
         }
     }
 
-    public void onChangeEvent() {
-        try {
-            checkAndProcessButtonChanged(
-                    bluetoothGattCallback.getButtonLeftCharacter(),
-                    bluetoothGattCallback.getButtonLeftHandledCharacter(),
-                    this::onButtonLeftHandledConfirmed);
+    /**
+     * Shows the failure of a command sent by a button press (e.g. a timeout) right away, rather
+     * than leaving the LED as if the command were still in progress. Commands rejected up front,
+     * e.g. while the GaragePi server is known to be unreachable, make sendGaragePiCmd return false
+     * and show the failure as soon as the button is pressed instead.
+     */
+    private void onGaragePiStatusChanged(GaragePiStatus status) {
+        if(awaitedGaragePiCommand == null || status.activity != GaragePiStatus.ActivityDone ||
+                !status.command.equals(awaitedGaragePiCommand)) {
+            return;
+        }
 
-            checkAndProcessButtonChanged(
-                    bluetoothGattCallback.getButtonRightCharacter(),
-                    bluetoothGattCallback.getButtonRightHandledCharacter(),
-                    this::onButtonRightHandledConfirmed);
+        awaitedGaragePiCommand = null;
+        if(status.errorKind != GaragePiStatus.ErrorNone) {
+            Log.i(LOG_TAG, "GaragePi " + status.command + " failed: " + status.description);
+            setButtonLed(true, Constants.LedTimingShort, 3, 3, 12);
+        }
+    }
 
-        } catch (N33ble1BluetoothGattCallback.NullBleComponentException e) {
-            Log.e(LOG_TAG, e.getMessage());
-            N33ble1State.sendIntent(context, N33ble1State.BleServiceError);
+    /**
+     * Evaluates the button whose character (or its handled counterpart) was read or notified, by
+     * comparing the latest values of both.
+     */
+    private void onCharacterValue(int character, byte[] value) {
+        values[character] = value;
+        switch (character) {
+            case N33ble1Profile.ButtonLeft:
+            case N33ble1Profile.ButtonLeftHandled:
+                checkAndProcessButtonChanged(N33ble1Profile.ButtonLeft, N33ble1Profile.ButtonLeftHandled,
+                        this::onButtonLeftHandledConfirmed);
+                break;
+
+            case N33ble1Profile.ButtonRight:
+            case N33ble1Profile.ButtonRightHandled:
+                checkAndProcessButtonChanged(N33ble1Profile.ButtonRight, N33ble1Profile.ButtonRightHandled,
+                        this::onButtonRightHandledConfirmed);
+                break;
         }
     }
+
     private void checkAndProcessButtonChanged(
-            BluetoothGattCharacteristic buttonCharacter,
-            BluetoothGattCharacteristic buttonHandledCharacter,
+            int buttonCharacter,
+            int buttonHandledCharacter,
             Consumer<Integer> onChangeConfirmed) {
-        final byte[] buttonValue = buttonCharacter.getValue();
-        final byte[] buttonHandledValue = buttonHandledCharacter.getValue();
+        final byte[] buttonValue = values[buttonCharacter];
+        final byte[] buttonHandledValue = values[buttonHandledCharacter];
 
         if(buttonValue == null || buttonHandledValue == null) {
-            // Kind-of noisy as INFO because this is expected on first connection as we send out
-            // ChangeEvents on every BLE first-read.
+            // Expected on first connection, until both characters are read.
             Log.d(LOG_TAG, "ButtonCharacter or ButtonHandledCharacter is not yet read.");
             return;
         }
 
         if(buttonValue.length != 1) {
-            Log.e(LOG_TAG, "ButtonCharacter " + buttonCharacter.getUuid() + " is of an unexpected length: " + buttonValue.length);
-            N33ble1State.sendIntent(context, N33ble1State.BleServiceError);
+            Log.e(LOG_TAG, "ButtonCharacter " + buttonCharacter + " is of an unexpected length: " + buttonValue.length);
+            N33ble1State.sendEvent(N33ble1State.BleServiceError);
             return;
         }
 
         if(buttonHandledValue.length != 1) {
-            Log.e(LOG_TAG, "ButtonHandledCharacter " + buttonHandledCharacter.getUuid() + " is of an unexpected length: " + buttonHandledValue.length);
-            N33ble1State.sendIntent(context, N33ble1State.BleServiceError);
+            Log.e(LOG_TAG, "ButtonHandledCharacter " + buttonHandledCharacter + " is of an unexpected length: " + buttonHandledValue.length);
+            N33ble1State.sendEvent(N33ble1State.BleServiceError);
             return;
         }
 
-        final int currentSequence = buttonValue[0] & 0b00111111;
-        final int handledSequence = buttonHandledValue[0] & 0b00111111;
+        final int currentSequence = N33ble1Profile.decodeButtonSequence(buttonValue[0]);
+        final int handledSequence = N33ble1Profile.decodeButtonSequence(buttonHandledValue[0]);
 
         if(currentSequence == handledSequence) {
-            Log.d(LOG_TAG, "Current button press for " + buttonCharacter.getUuid() + " already handled: " + currentSequence);
+            Log.d(LOG_TAG, "Current button press for " + buttonCharacter + " already handled: " + currentSequence);
             return;
         }
 
-        buttonHandledCharacter.setValue(buttonValue);
-        final N33ble1BluetoothGattCallback.ChangeRequest changeRequest =
-                bluetoothGattCallback.new ChangeRequest(buttonHandledCharacter, true);
-
-        final int pressType = (buttonValue[0] >> 6) & 0b00000011;
-        changeRequest.onCompletedRunnable = () -> onChangeConfirmed.accept(pressType);
-
-        bluetoothGattCallback.addChangeRequest(changeRequest);
+        try {
+            final BluetoothGattCharacteristic handledCharacteristic =
+                    bluetoothGattCallback.getCharacter(buttonHandledCharacter);
+            handledCharacteristic.setValue(buttonValue);
+            final N33ble1BluetoothGattCallback.ChangeRequest changeRequest =
+                    bluetoothGattCallback.new ChangeRequest(handledCharacteristic, true, N33ble1GattScheduler.PriorityButton);
+
+            final int pressType = N33ble1Profile.decodeButtonPressType(buttonValue[0]);
+            changeRequest.onCompletedRunnable = () -> onChangeConfirmed.accept(pressType);
+
+            // Counts as handled from now on, so a repeated notification isn't acked twice.
+            values[buttonHandledCharacter] = buttonValue;
+            bluetoothGattCallback.addChangeRequest(changeRequest);
+        } catch (N33ble1BluetoothGattCallback.NullBleComponentException e) {
+            Log.e(LOG_TAG, e.getMessage());
+            N33ble1State.sendEvent(N33ble1State.BleServiceError);
+        }
     }
 
     // TODO: delaySeconds is only implemented for LEFT at the moment!
     private void setButtonLed(boolean isLeft, byte timing, int firstSeqInt, int secondSeqInt, int delaySeconds) {
-        final byte firstSeq = (byte)firstSeqInt;
-        final byte secondSeq = (byte)secondSeqInt;
-
-        if((firstSeq & 0b11111000) != 0) {
-            Log.e(LOG_TAG, "Cannot set first led sequence to " + firstSeq + "; too large!");
-            return;
-        }
-
-        if((secondSeq & 0b11111000) != 0) {
-            Log.e(LOG_TAG, "Cannot set second led sequence to " + secondSeq + "; too large!");
+        final byte ledValue;
+        try {
+            ledValue = N33ble1Profile.encodeLed(timing, firstSeqInt, secondSeqInt);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Cannot set led: " + e.getMessage());
             return;
         }
 
         Log.i(LOG_TAG, "Setting " + (isLeft ? "left" : "right") +
                         " led - timing: " + Byte.toUnsignedInt(timing) +
                         ", firstSeq: " + firstSeqInt +
-                        ", secondSeq: " + delaySeconds +
+                        ", secondSeq: " + secondSeqInt +
                         ", delay: " + delaySeconds);
 
         try {
             final BluetoothGattCharacteristic ledCharacter =
                     (isLeft ? bluetoothGattCallback.getButtonLeftLedCharacter()
                             : bluetoothGattCallback.getButtonRightLedCharacter());
-            final byte[] newValue = {(byte)(timing | ((secondSeq << 3) & 0b00111000) | (firstSeq & 0b00000111))};
-
-            ledCharacter.setValue(newValue);
+            ledCharacter.setValue(new byte[]{ ledValue });
             bluetoothGattCallback.addChangeRequest(
                     bluetoothGattCallback.new ChangeRequest(ledCharacter, true));
         } catch (N33ble1BluetoothGattCallback.NullBleComponentException e) {
             Log.e(LOG_TAG, e.getMessage());
-            N33ble1State.sendIntent(context, N33ble1State.BleServiceError);
+            N33ble1State.sendEvent(N33ble1State.BleServiceError);
         }
 
         if(isLeft && delaySeconds != 0) {
@@ -171,16 +222,9 @@ public class N33ble1MonitorBleEventHandler {
                 Log.i(LOG_TAG, "Button pressed once");
                 final boolean sendSuccess = ArfugaApp
                         .getDLZPServerClient()
-                        .sendGaragePiCmd(Constants.GaragePiCmdStatus);
+                        .refreshGaragePiStatus();
                 if (sendSuccess) {
                     setButtonLed(true, Constants.LedTimingIgnore, 0, 0, 0);
-                    // TODO implement status get and UI
-//                    DLZPServerClient.getInstance(context).getGaragePiStatus().observe(lifecycleOwner, new Observer<String>() {
-//                        @Override
-//                        public void onChanged(String status) {
-//                            if(status.contains(""))
-//                        }
-//                    });
                 } else {
                     setButtonLed(true, Constants.LedTimingShort, 3, 3, 12);
                 }
@@ -192,6 +236,7 @@ public class N33ble1MonitorBleEventHandler {
                         .getDLZPServerClient()
                         .sendGaragePiCmd(Constants.GaragePiCmdTimed);
                 if (sendSuccess) {
+                    awaitedGaragePiCommand = Constants.GaragePiCmdTimed;
                     setButtonLed(true, Constants.LedTimingLong, 1, 1, 35);
                 } else {
                     setButtonLed(true, Constants.LedTimingShort, 3, 3, 12);
@@ -204,6 +249,7 @@ public class N33ble1MonitorBleEventHandler {
                         .getDLZPServerClient()
                         .sendGaragePiCmd(Constants.GaragePiCmdToggle);
                 if (sendSuccess) {
+                    awaitedGaragePiCommand = Constants.GaragePiCmdToggle;
                     setButtonLed(true, Constants.LedTimingLong, 1, 2, 12);
                 } else {
                     setButtonLed(true, Constants.LedTimingShort, 3, 3, 12);
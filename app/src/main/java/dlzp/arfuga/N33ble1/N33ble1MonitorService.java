@@ -8,13 +8,13 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.app.ActivityCompat;
@@ -22,8 +22,10 @@ import androidx.lifecycle.LifecycleService;
 
 import org.jetbrains.annotations.NotNull;
 
+import dlzp.arfuga.ArfugaApp;
 import dlzp.arfuga.EventThrottler;
 import dlzp.arfuga.R;
+import dlzp.arfuga.data.DLZPServerClient;
 
 /**
  * Attempts to create and maintain a BLE connection with N33ble1 when created. While connected, this
@@ -40,10 +42,28 @@ import dlzp.arfuga.R;
  *
  * In the end, this service should be alive, foregrounded, and monitoring any time N33ble1 is
  * in-range.
+ *
+ * When started because N33ble1 appeared, N33ble1 is advertising right then, so this connects
+ * directly, which attaches far sooner than autoConnect's background scanning. If that doesn't
+ * connect within DirectConnectTimeoutMs, or the connection drops later, autoConnect takes over,
+ * as it keeps trying (and reconnecting) for as long as it takes.
  */
 public class N33ble1MonitorService extends LifecycleService {
     private static final String LOG_TAG = "N33ble1MonitorService";
     private static final int NotificationIdForeground = 1;
+    private static final long DirectConnectTimeoutMs = 5 * 1000;
+
+    public static final String ExtraDeviceAppeared = "dlzp.arfuga.N33ble1.N33ble1MonitorService.extra.DeviceAppeared";
+
+    // Kept for the whole process, as this service comes and goes with N33ble1.
+    private static final N33ble1ConnectStats connectStats = new N33ble1ConnectStats();
+
+    /**
+     * @return The time it took to connect to N33ble1 for each connection strategy, for diagnostics.
+     */
+    public static String getConnectStats() {
+        return connectStats.getStatsDescription();
+    }
 
     private static N33ble1MonitorService instance = null;
     public static N33ble1BluetoothGattCallback getBluetoothGattCallbackInstance() {
@@ -53,68 +73,101 @@ public class N33ble1MonitorService extends LifecycleService {
         return null;
     }
 
-    private class MyBroadcastReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            switch (action) {
-                case N33ble1State.ResetConnection:
-                    Log.i(LOG_TAG, "Resetting connection");
+    private void onN33ble1Event(N33ble1Event event) {
+        final String action = event.action;
+        switch (action) {
+            case N33ble1State.ResetConnection:
+                Log.i(LOG_TAG, "Resetting connection");
+                disconnectFromN33ble1();
+                connectToN33ble1(N33ble1ConnectStats.StrategyAutoConnect, true);
+                break;
+
+            case N33ble1State.DeviceConnected:
+                isConnected = true;
+                directConnectHandler.removeCallbacksAndMessages(null);
+                if(connectStartedNs != 0) {
+                    connectStats.onConnected(timedStrategy, System.nanoTime() - connectStartedNs);
+                    connectStartedNs = 0;
+                }
+
+                Log.d(LOG_TAG, "Starting foreground with notification");
+                foregroundSelf();
+                // A button press is likely to follow soon; get the GaragePi connection ready.
+                ArfugaApp.getDLZPServerClient().prewarmGaragePi();
+                ArfugaApp.getDLZPServerClient()
+                        .subscribeGaragePiStatus(DLZPServerClient.GaragePiSubscriberN33ble1);
+                break;
+
+            case N33ble1State.DeviceDisconnected:
+                Log.d(LOG_TAG, "Removing foreground and notification");
+                stopForeground(true);
+                ArfugaApp.getDLZPServerClient().endGaragePiPrewarm();
+                ArfugaApp.getDLZPServerClient()
+                        .unsubscribeGaragePiStatus(DLZPServerClient.GaragePiSubscriberN33ble1);
+
+                isConnected = false;
+                if(connectStrategy == N33ble1ConnectStats.StrategyDirect) {
+                    // A direct connection isn't re-established by Android; wait for N33ble1 to
+                    // return in the background. Not timed, as it includes however long N33ble1 is
+                    // gone for.
+                    Log.i(LOG_TAG, "Direct connection lost, reconnecting with autoConnect");
                     disconnectFromN33ble1();
-                    connectToN33ble1();
-                    break;
-
-                case N33ble1State.DeviceConnected:
-                    Log.d(LOG_TAG, "Starting foreground with notification");
-                    foregroundSelf();
-                    break;
-
-                case N33ble1State.DeviceDisconnected:
-                    Log.d(LOG_TAG, "Removing foreground and notification");
-                    stopForeground(true);
-                    break;
-
-                case N33ble1State.ChangeReceived:
-                    if (bleEventHandler == null) {
-                        Log.e(LOG_TAG, "BleEventHandler was null on ChangeReceived!");
-                    } else {
-                        bleEventHandler.onChangeEvent();
-                    }
+                    connectToN33ble1(N33ble1ConnectStats.StrategyAutoConnect, false);
+                }
+                break;
+
+            case N33ble1State.BluetoothGattReady:
+                if (bleEventHandler == null) {
+                    Log.e(LOG_TAG, "BleEventHandler was null on BluetoothGattReady!");
+                } else {
+                    bleEventHandler.onBluetoothGattReady();
+                }
+                break;
+
+            case N33ble1State.BluetoothGattError:
+                if(!isConnected && connectStrategy == N33ble1ConnectStats.StrategyDirect) {
+                    // The direct connection failed; no need to wait for its deadline.
+                    fallBackToAutoConnect();
                     break;
-
-                case N33ble1State.BluetoothGattReady:
-                    if (bleEventHandler == null) {
-                        Log.e(LOG_TAG, "BleEventHandler was null on BluetoothGattReady!");
-                    } else {
-                        bleEventHandler.onBluetoothGattReady();
-                    }
-                    break;
-
-                case N33ble1State.BluetoothGattError:
-                    // Reset connections and retry our connection on gatt errors. If this is too
-                    // frequent, it will fall-back to a full BleServiceError.
-                    if(bluetoothGattErrorThrottler.tryTriggerEvent()) {
-                        N33ble1State.sendIntent(getApplicationContext(), N33ble1State.ResetConnection);
-                    } else {
-                        N33ble1State.sendIntent(getApplicationContext(), N33ble1State.BleServiceError);
-                    }
-                    break;
-
-                case N33ble1State.BleServiceError:
-                    disconnectFromN33ble1();
-                    break;
-
-                default:
-                    Log.e(LOG_TAG, "Unhandled registered broadcast received: " + action);
-            }
+                }
+
+                // Reset connections and retry our connection on gatt errors. If this is too
+                // frequent, it will fall-back to a full BleServiceError.
+                if(bluetoothGattErrorThrottler.tryTriggerEvent()) {
+                    N33ble1State.sendEvent(N33ble1State.ResetConnection);
+                } else {
+                    N33ble1State.sendEvent(N33ble1State.BleServiceError);
+                }
+                break;
+
+            case N33ble1State.BleServiceError:
+                disconnectFromN33ble1();
+                break;
+
+            case N33ble1State.AdapterOffline:
+            case N33ble1State.InvalidTargetAddress:
+            case N33ble1State.NoBluetoothPermissions:
+                // Reported to the user by the UI; the connection is left as is.
+                break;
+
+            case N33ble1State.ChangeReceived:
+                // Only refreshes the UI. The BleEventHandler gets changed values directly.
+                break;
+
+            default:
+                Log.e(LOG_TAG, "Unhandled N33ble1 event: " + action);
         }
     }
 
-    private MyBroadcastReceiver myBroadcastReceiver = null;
     private final EventThrottler bluetoothGattErrorThrottler = new EventThrottler(3, 30000);
     private BluetoothGatt bluetoothGatt = null;
     private N33ble1BluetoothGattCallback bluetoothGattCallback = null;
     private N33ble1MonitorBleEventHandler bleEventHandler = null;
+    private final Handler directConnectHandler = new Handler(Looper.getMainLooper());
+    private int connectStrategy = N33ble1ConnectStats.StrategyAutoConnect;
+    private long connectStartedNs = 0; // 0 unless a timed connection is pending.
+    private int timedStrategy = N33ble1ConnectStats.StrategyAutoConnect; // What it is recorded as.
+    private boolean isConnected = false;
 
     public N33ble1MonitorService() {
         Log.v(LOG_TAG, "Constructed");
@@ -137,17 +190,23 @@ public class N33ble1MonitorService extends LifecycleService {
         }
         instance = this;
 
-        myBroadcastReceiver = new MyBroadcastReceiver();
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(N33ble1State.ResetConnection);
-        intentFilter.addAction(N33ble1State.DeviceDisconnected);
-        intentFilter.addAction(N33ble1State.DeviceConnected);
-        intentFilter.addAction(N33ble1State.ChangeReceived);
-        intentFilter.addAction(N33ble1State.BluetoothGattReady);
-        intentFilter.addAction(N33ble1State.BluetoothGattError);
-        registerReceiver(myBroadcastReceiver, intentFilter);
-
-        connectToN33ble1();
+        // Unsubscribed when this is destroyed.
+        ArfugaApp.getEventBus().observe(this, N33ble1Event.class, this::onN33ble1Event);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final boolean deviceAppeared = intent != null && intent.getBooleanExtra(ExtraDeviceAppeared, false);
+        if(bluetoothGatt == null) {
+            connectToN33ble1(deviceAppeared ? N33ble1ConnectStats.StrategyDirect
+                    : N33ble1ConnectStats.StrategyAutoConnect, true);
+        } else if (deviceAppeared && !isConnected &&
+                connectStrategy == N33ble1ConnectStats.StrategyAutoConnect) {
+            Log.i(LOG_TAG, "N33ble1 appeared while waiting on autoConnect, connecting directly");
+            disconnectFromN33ble1();
+            connectToN33ble1(N33ble1ConnectStats.StrategyDirect, true);
+        }
+        return super.onStartCommand(intent, flags, startId);
     }
 
     @Override
@@ -157,13 +216,6 @@ public class N33ble1MonitorService extends LifecycleService {
 
         disconnectFromN33ble1();
 
-        if(myBroadcastReceiver != null) {
-            unregisterReceiver(myBroadcastReceiver);
-            myBroadcastReceiver = null;
-        } else {
-            Log.e(LOG_TAG, "myBroadcastReceiver null upon service destruction");
-        }
-
         if (instance == null) {
             Log.e(LOG_TAG, "Service destroyed but no static instance exists!");
         }
@@ -201,8 +253,12 @@ public class N33ble1MonitorService extends LifecycleService {
         startForeground(NotificationIdForeground, notification);
     }
 
-    private void connectToN33ble1() {
-        Log.i(LOG_TAG, "Connecting to N33ble1");
+    /**
+     * @param strategy One of N33ble1ConnectStats' strategies.
+     * @param timed Whether to record the time it takes to connect in connectStats.
+     */
+    private void connectToN33ble1(int strategy, boolean timed) {
+        Log.i(LOG_TAG, "Connecting to N33ble1 (" + N33ble1ConnectStats.describeStrategy(strategy) + ")");
 
         if(bluetoothGatt != null) {
             Log.w(LOG_TAG, "Bluetooth gatt was not null when connecting to N33ble1, resetting.");
@@ -214,32 +270,71 @@ public class N33ble1MonitorService extends LifecycleService {
         final BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
             Log.w(LOG_TAG, "No bluetooth adapter or adapter is offline.");
-            N33ble1State.sendIntent(this, N33ble1State.AdapterOffline);
+            N33ble1State.sendEvent(N33ble1State.AdapterOffline);
             return;
         }
 
         if (!BluetoothAdapter.checkBluetoothAddress(getString(R.string.N33ble1Address))) {
             Log.e(LOG_TAG, "Resource N33ble1Address is an invalid BLE address!");
-            N33ble1State.sendIntent(this, N33ble1State.InvalidTargetAddress);
+            N33ble1State.sendEvent(N33ble1State.InvalidTargetAddress);
             return;
         }
 
         final BluetoothDevice bluetoothDevice = bluetoothAdapter.getRemoteDevice(getString(R.string.N33ble1Address));
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
             Log.w(LOG_TAG, "Bluetooth permissions are not present.");
-            N33ble1State.sendIntent(this, N33ble1State.NoBluetoothPermissions);
+            N33ble1State.sendEvent(N33ble1State.NoBluetoothPermissions);
             return;
         }
 
+        connectStrategy = strategy;
+        timedStrategy = strategy;
+        connectStartedNs = timed ? System.nanoTime() : 0;
+        if(timed) {
+            connectStats.onAttempt(strategy);
+        }
+
         bluetoothGattCallback = new N33ble1BluetoothGattCallback(this);
-        bluetoothGatt = bluetoothDevice.connectGatt(this, true, bluetoothGattCallback);
-        bleEventHandler = new N33ble1MonitorBleEventHandler(this, bluetoothGattCallback);
+        if(strategy == N33ble1ConnectStats.StrategyDirect) {
+            bluetoothGatt = bluetoothDevice.connectGatt(this, false, bluetoothGattCallback, BluetoothDevice.TRANSPORT_LE);
+            directConnectHandler.postDelayed(this::fallBackToAutoConnect, DirectConnectTimeoutMs);
+        } else {
+            bluetoothGatt = bluetoothDevice.connectGatt(this, true, bluetoothGattCallback);
+        }
+        bleEventHandler = new N33ble1MonitorBleEventHandler(bluetoothGattCallback);
+    }
+
+    /**
+     * Gives up on a pending direct connection for autoConnect. The time to connect keeps counting
+     * from the direct attempt, which is when N33ble1 was known to be there, and is recorded as a
+     * fallback rather than as autoConnect.
+     */
+    private void fallBackToAutoConnect() {
+        if(isConnected || connectStrategy != N33ble1ConnectStats.StrategyDirect) {
+            return;
+        }
+
+        Log.i(LOG_TAG, "Direct connection to N33ble1 failed or timed out, falling back to autoConnect");
+        final long startedNs = connectStartedNs;
+        disconnectFromN33ble1();
+        connectToN33ble1(N33ble1ConnectStats.StrategyAutoConnect, false);
+        // connectStrategy is left as direct if connecting gave up, e.g. with the adapter offline.
+        if(startedNs != 0 && connectStrategy == N33ble1ConnectStats.StrategyAutoConnect) {
+            connectStats.onAttempt(N33ble1ConnectStats.StrategyFallback);
+            timedStrategy = N33ble1ConnectStats.StrategyFallback;
+            connectStartedNs = startedNs;
+        }
     }
 
     private void disconnectFromN33ble1() {
         stopForeground(true);
+        directConnectHandler.removeCallbacksAndMessages(null);
+        isConnected = false;
 
-        bleEventHandler = null;
+        if(bleEventHandler != null) {
+            bleEventHandler.release();
+            bleEventHandler = null;
+        }
         try {
             if(bluetoothGatt != null) {
                 Log.i(LOG_TAG, "Disconnecting from N33ble1");
@@ -248,9 +343,12 @@ public class N33ble1MonitorService extends LifecycleService {
                 bluetoothGatt = null;
             }
         } catch(SecurityException e) {
-            N33ble1State.sendAndLogBluetoothPermissionError(this, LOG_TAG, "disconnectFromN33ble1");
+            N33ble1State.sendAndLogBluetoothPermissionError(LOG_TAG, "disconnectFromN33ble1");
+        }
+        if(bluetoothGattCallback != null) {
+            bluetoothGattCallback.cancelChangeRequests();
+            bluetoothGattCallback = null;
         }
-        bluetoothGattCallback = null;
     }
 
 }
\ No newline at end of file
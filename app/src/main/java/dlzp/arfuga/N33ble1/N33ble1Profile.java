@@ -0,0 +1,131 @@
+package dlzp.arfuga.N33ble1;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.UUID;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * N33ble1's GATT characteristics, resolved once when services are discovered so they can be
+ * looked up by index without parsing UUIDs or searching services, plus the encoding of their
+ * values.
+ *
+ * Button characteristics (and their handled counterparts) hold one byte: the press type in the top
+ * two bits and a 6-bit press sequence. Button LED characteristics hold one byte: the timing in the
+ * top two bits, then the second and first 3-bit blink sequences. The board LED holds four bytes:
+ * an external LED byte encoded like a button LED, then red, green and blue.
+ */
+public class N33ble1Profile {
+    public static final int BoardLed = 0;
+    public static final int ButtonLeft = 1;
+    public static final int ButtonRight = 2;
+    public static final int ButtonLeftHandled = 3;
+    public static final int ButtonRightHandled = 4;
+    public static final int ButtonLeftLed = 5;
+    public static final int ButtonRightLed = 6;
+    static final int CharacterCount = 7;
+
+    static final UUID ServiceUuid = UUID.fromString(Constants.CbServiceUuid);
+    static final UUID ClientCharacteristicConfigurationUuid =
+            UUID.fromString(Constants.ClientCharacteristicConfiguration);
+
+    // Indexed by character.
+    private static final UUID[] CharacterUuids = {
+            UUID.fromString(Constants.BoardLedCharUuid),
+            UUID.fromString(Constants.ButtonLeftCharUuid),
+            UUID.fromString(Constants.ButtonRightCharUuid),
+            UUID.fromString(Constants.ButtonLeftHandledCharUuid),
+            UUID.fromString(Constants.ButtonRightHandledCharUuid),
+            UUID.fromString(Constants.ButtonLeftLedCharUuid),
+            UUID.fromString(Constants.ButtonRightLedCharUuid)
+    };
+
+    public static final int BoardLedLength = 4;
+    private static final int SequenceMask = 0b00111111;
+    private static final int LedSequenceMask = 0b00000111;
+
+    private final BluetoothGattCharacteristic[] characters;
+
+    private N33ble1Profile(BluetoothGattCharacteristic[] characters) {
+        this.characters = characters;
+    }
+
+    /**
+     * Looks up every characteristic of the discovered services.
+     */
+    static N33ble1Profile resolve(BluetoothGatt gatt) throws N33ble1BluetoothGattCallback.NullBleComponentException {
+        final BluetoothGattService cbService = gatt.getService(ServiceUuid);
+        if(cbService == null) {
+            throw new N33ble1BluetoothGattCallback.NullBleComponentException("CbService is null, is N33ble1 disconnected?");
+        }
+
+        final BluetoothGattCharacteristic[] characters = new BluetoothGattCharacteristic[CharacterCount];
+        for(int character = 0; character < CharacterCount; character++) {
+            characters[character] = cbService.getCharacteristic(CharacterUuids[character]);
+            if(characters[character] == null) {
+                throw new N33ble1BluetoothGattCallback.NullBleComponentException(
+                        "Character from uuid '" + CharacterUuids[character] + "' is null, is N33ble1 malformed?");
+            }
+        }
+        return new N33ble1Profile(characters);
+    }
+
+    BluetoothGattCharacteristic get(int character) {
+        return characters[character];
+    }
+
+    /**
+     * @return The character with the uuid, or -1 if it isn't one of N33ble1's.
+     */
+    static int indexOf(UUID uuid) {
+        for(int character = 0; character < CharacterCount; character++) {
+            if(CharacterUuids[character].equals(uuid)) {
+                return character;
+            }
+        }
+        return -1;
+    }
+
+    public static int decodeButtonPressType(byte value) {
+        return (value >> 6) & 0b00000011;
+    }
+
+    public static int decodeButtonSequence(byte value) {
+        return value & SequenceMask;
+    }
+
+    public static int decodeLedTiming(byte value) {
+        return (value >> 6) & 0b00000011;
+    }
+
+    public static int decodeLedFirstSequence(byte value) {
+        return value & LedSequenceMask;
+    }
+
+    public static int decodeLedSecondSequence(byte value) {
+        return (value >> 3) & LedSequenceMask;
+    }
+
+    /**
+     * @param timing One of Constants.LedTiming*.
+     * @return The LED byte, or throws if a sequence doesn't fit in three bits.
+     */
+    public static byte encodeLed(byte timing, int firstSequence, int secondSequence) {
+        if((firstSequence & ~LedSequenceMask) != 0 || (secondSequence & ~LedSequenceMask) != 0) {
+            throw new IllegalArgumentException("Led sequences " + firstSequence + ", " + secondSequence + " are too large!");
+        }
+        return (byte) (timing | (secondSequence << 3) | firstSequence);
+    }
+
+    public static byte[] encodeBoardLed(byte external, int red, int green, int blue) {
+        return new byte[]{ external, (byte) red, (byte) green, (byte) blue };
+    }
+
+    public static byte decodeBoardLedExternal(byte[] value) { return value[0]; }
+    public static int decodeBoardLedRed(byte[] value) { return Byte.toUnsignedInt(value[1]); }
+    public static int decodeBoardLedGreen(byte[] value) { return Byte.toUnsignedInt(value[2]); }
+    public static int decodeBoardLedBlue(byte[] value) { return Byte.toUnsignedInt(value[3]); }
+}
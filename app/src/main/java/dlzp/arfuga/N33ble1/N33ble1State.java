@@ -1,15 +1,15 @@
 package dlzp.arfuga.N33ble1;
 
-import android.content.Context;
-import android.content.Intent;
 import android.util.Log;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 
+import dlzp.arfuga.ArfugaApp;
+
 /**
  * Statically holds some state related to N33ble1 connection. Provides a central place to define
- * intent-focused actions related to N33ble1 connection.
+ * the actions of the N33ble1Events published on ArfugaApp's EventBus.
  *
  * TODO The design of this isn't great and should be reworked to avoid static state outside of
  *      ArfugaApp.
@@ -28,31 +28,18 @@ public class N33ble1State {
     public static final String BluetoothGattReady = "dlzp.arfuga.N33ble1.N33ble1State.intent.action.BluetoothGattReady";
     public static final String BluetoothGattError = "dlzp.arfuga.N33ble1.N33ble1State.intent.action.BluetoothGattError";
 
-    public static final String[] AllActions = {
-            AdapterOffline,
-            InvalidTargetAddress,
-            NoBluetoothPermissions,
-            BleServiceError,
-            ChangeReceived,
-            DeviceConnected,
-            DeviceDisconnected,
-            ResetConnection,
-            BluetoothGattReady,
-            BluetoothGattError
-    };
-
-    public static void sendIntent(Context context, String action) {
-        Intent intent = new Intent();
-        intent.setAction(action);
-        intent.setPackage(context.getPackageName());
-        context.sendBroadcast(new Intent().setAction(action).setPackage(context.getPackageName()));
-
-        onReceive(intent);
+    /**
+     * Publishes the action as an N33ble1Event. Only this app cares about these, so they stay in
+     * process instead of being broadcast.
+     */
+    public static void sendEvent(String action) {
+        onEvent(action);
+        ArfugaApp.getEventBus().publish(new N33ble1Event(action));
     }
 
-    public static void sendAndLogBluetoothPermissionError(Context context, String logTag, String exceptionTrigger) {
+    public static void sendAndLogBluetoothPermissionError(String logTag, String exceptionTrigger) {
         Log.e(logTag, "Bluetooth permissions denied action attempt: " + exceptionTrigger);
-        sendIntent(context, NoBluetoothPermissions);
+        sendEvent(NoBluetoothPermissions);
     }
 
     private static <T> MutableLiveData<T> InitMutableLiveData(T initialValue) {
@@ -67,8 +54,7 @@ public class N33ble1State {
     public static LiveData<String> getEncounteredError() { return encounteredError; }
     public static LiveData<Boolean> getDeviceConnected() { return deviceConnected; }
 
-    private static void onReceive(Intent intent) {
-        final String action = intent.getAction();
+    private static void onEvent(String action) {
         switch (action) {
             case N33ble1State.AdapterOffline:
             case N33ble1State.InvalidTargetAddress:
@@ -95,7 +81,7 @@ public class N33ble1State {
                 break;
 
             default:
-                Log.e(LOG_TAG, "Unhandled registered broadcast received: " + action);
+                Log.e(LOG_TAG, "Unhandled N33ble1 event: " + action);
         }
     }
 }
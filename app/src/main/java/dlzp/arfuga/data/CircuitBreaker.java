@@ -0,0 +1,212 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks whether a server endpoint is reachable, so that requests to a server that is known to be
+ * down fail right away instead of each waiting for its own connect timeout.
+ *
+ * The breaker opens after FailureThreshold consecutive failures within FailureWindowMs. While
+ * open, requests are rejected without touching the network. Once the open period has passed, the
+ * next request is let through as a probe (half-open); if nobody sends one, the listener is asked
+ * to send a probe in the background. A successful probe closes the breaker, a failed one opens it
+ * again for twice as long, up to MaxOpenMs.
+ *
+ * Only failures to reach the server count. Any response, even one rejecting the request, shows the
+ * server is up.
+ *
+ * tryAcquire() may be called from any thread. Outcomes are reported and the listener is called on
+ * the NioTransport's thread.
+ */
+class CircuitBreaker {
+    private static final String LOG_TAG = "CircuitBreaker";
+    private static final int FailureThreshold = 3;
+    private static final long FailureWindowMs = 2 * 60 * 1000;
+    private static final long InitialOpenMs = 5 * 1000;
+    private static final long MaxOpenMs = 2 * 60 * 1000;
+    private static final long ProbeTimeoutMs = 30 * 1000; // Longer than any request's deadline.
+
+    static final int StateClosed = 0;
+    static final int StateOpen = 1;
+    static final int StateHalfOpen = 2;
+
+    /**
+     * Called on the transport thread.
+     */
+    interface Listener {
+        /**
+         * The breaker is ready to let a probe through, so a cheap request should be sent now.
+         */
+        void onProbeDue();
+    }
+
+    private final String endpoint;
+    private final NioTransport transport;
+    private final Listener listener;
+
+    // Guarded by this.
+    private int state = StateClosed;
+    private int consecutiveFailures = 0;
+    private long firstFailureNs = 0;
+    private long openMs = InitialOpenMs;
+    private long retryAtNs = 0;
+    private long probeStartedNs = 0;
+    private int opened = 0;
+    private int rejected = 0;
+    private int probes = 0;
+
+    // Only touched on the transport thread.
+    private NioTransport.Timer probeTimer = null;
+
+    CircuitBreaker(String endpoint, NioTransport transport, Listener listener) {
+        this.endpoint = endpoint;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /**
+     * @return True if the request may go ahead, in which case the outcome of the network attempt
+     * carrying it must be reported with onSuccess or onFailure. False if the endpoint is known to
+     * be down.
+     */
+    synchronized boolean tryAcquire() {
+        final long nowNs = System.nanoTime();
+        switch (state) {
+            case StateOpen:
+                if(nowNs - retryAtNs < 0) {
+                    rejected++;
+                    return false;
+                }
+                Log.i(LOG_TAG, "Probing " + endpoint);
+                startProbe(nowNs);
+                return true;
+            case StateHalfOpen:
+                // A probe whose outcome never arrived doesn't hold the breaker half-open forever.
+                if(TimeUnit.NANOSECONDS.toMillis(nowNs - probeStartedNs) < ProbeTimeoutMs) {
+                    rejected++;
+                    return false;
+                }
+                startProbe(nowNs);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private void startProbe(long nowNs) {
+        state = StateHalfOpen;
+        probeStartedNs = nowNs;
+        probes++;
+    }
+
+    /**
+     * @return Milliseconds until the next probe may be sent, 0 unless the breaker is open.
+     */
+    synchronized long getRetryInMs() {
+        if(state != StateOpen) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(retryAtNs - System.nanoTime()));
+    }
+
+    synchronized String getStatsDescription() {
+        return "state: " + describeState(state) +
+                ", consecutive failures: " + consecutiveFailures +
+                ", opened: " + opened +
+                ", rejected: " + rejected +
+                ", probes: " + probes;
+    }
+
+    private static String describeState(int state) {
+        switch (state) {
+            case StateClosed: return "closed";
+            case StateOpen: return "open";
+            case StateHalfOpen: return "half-open";
+            default: return "state " + state;
+        }
+    }
+
+    /**
+     * The endpoint answered. Must be called on the transport thread.
+     */
+    void onSuccess() {
+        synchronized (this) {
+            if(state != StateClosed) {
+                Log.i(LOG_TAG, endpoint + " is reachable again");
+            }
+            state = StateClosed;
+            consecutiveFailures = 0;
+            openMs = InitialOpenMs;
+        }
+        cancelProbeTimer();
+    }
+
+    /**
+     * The endpoint could not be reached. Must be called on the transport thread.
+     */
+    void onFailure() {
+        final long delayMs;
+        synchronized (this) {
+            final long nowNs = System.nanoTime();
+            if(consecutiveFailures == 0 ||
+                    TimeUnit.NANOSECONDS.toMillis(nowNs - firstFailureNs) > FailureWindowMs) {
+                consecutiveFailures = 0;
+                firstFailureNs = nowNs;
+            }
+            consecutiveFailures++;
+
+            if(state == StateHalfOpen) {
+                openMs = Math.min(openMs * 2, MaxOpenMs);
+            } else if (state == StateOpen || consecutiveFailures < FailureThreshold) {
+                return;
+            }
+
+            state = StateOpen;
+            opened++;
+            retryAtNs = nowNs + TimeUnit.MILLISECONDS.toNanos(openMs);
+            delayMs = openMs;
+            Log.w(LOG_TAG, endpoint + " is unreachable after " + consecutiveFailures +
+                    " failures, rejecting requests for " + openMs + "ms");
+        }
+        scheduleProbe(delayMs);
+    }
+
+    /**
+     * Lets an open breaker probe right away, e.g. because the device switched networks and the
+     * endpoint may be reachable now. Safe to call from any thread.
+     */
+    void onNetworkChanged() {
+        transport.post(() -> {
+            synchronized (this) {
+                if(state != StateOpen) {
+                    return;
+                }
+                retryAtNs = System.nanoTime();
+            }
+            scheduleProbe(0);
+        });
+    }
+
+    private void scheduleProbe(long delayMs) {
+        cancelProbeTimer();
+        probeTimer = transport.schedule(() -> {
+            probeTimer = null;
+            synchronized (this) {
+                if(state != StateOpen) {
+                    // Another request already went through as the probe.
+                    return;
+                }
+            }
+            listener.onProbeDue();
+        }, delayMs);
+    }
+
+    private void cancelProbeTimer() {
+        if(probeTimer != null) {
+            probeTimer.cancel();
+            probeTimer = null;
+        }
+    }
+}
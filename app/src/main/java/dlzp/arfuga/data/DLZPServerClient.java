@@ -2,29 +2,33 @@ package dlzp.arfuga.data;
 
 import android.content.Context;
 import android.content.ContextWrapper;
-import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.LifecycleOwner;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.ProcessLifecycleOwner;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
 
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 
 import dlzp.arfuga.ArfugaApp;
+import dlzp.arfuga.Constants;
 import dlzp.arfuga.R;
 
 /**
@@ -35,216 +39,449 @@ public class DLZPServerClient {
     private static final String LOG_TAG = "DLZPServerClient";
     private static final String PreferencesName = "dlzp.arfuga.data.DLZPServerClient.preferences";
     private static final String PreferencesGaragePiEnabled = "dlzp.arfuga.data.DLZPServerClient.preferences.GaragePiEnabled";
+    private static final String PreferencesFuelTrackerBatchSupport = "dlzp.arfuga.data.DLZPServerClient.preferences.FuelTrackerBatchSupport";
     public static final String FuelTrackerStatusValueSuccess = "Success!";
-
-    public static final String GaragePiStatusUpdated = "dlzp.arfuga.data.DLZPServerClient.intent.action.GaragePiStatus";
-    public static final String GaragePiError = "dlzp.arfuga.data.DLZPServerClient.intent.action.GaragePiCmdError";
-    public static final String FuelTrackerStatusUpdated = "dlzp.arfuga.data.DLZPServerClient.intent.action.FuelTrackerStatusUpdated";
-
-    public static final String ExtraErrorInfo = "dlzp.arfuga.data.DLZPServerClient.intent.extra.ErrorInfo";
-
-    public static final String[] AllActions = {
-            GaragePiStatusUpdated,
-            GaragePiError,
-            FuelTrackerStatusUpdated
-    };
+    public static final String FuelTrackerStatusValueQueued = "Saved, waiting to send";
+    private static final String FuelTrackerJournalFileName = "fueltracker.journal";
+    private static final long FuelTrackerRetryInitialDelayMs = 30 * 1000;
+    private static final long FuelTrackerRetryMaxDelayMs = 30 * 60 * 1000;
+    private static final long GaragePiPrewarmIdleBudgetMs = 5 * 60 * 1000;
+    private static final long GaragePiDedupeWindowMs = 2000;
+    private static final long GaragePiCommandDeadlineMs = 10 * 1000;
+    private static final long GaragePiStatusDeadlineMs = 6 * 1000;
+    private static final boolean GaragePiHedgingEnabled = true;
+    private static final long GaragePiStatusTtlMs = 2 * 60 * 1000;
+    private static final long GaragePiStatusFreshMs = 15 * 1000;
+    private static final String SupersedeKeyGaragePiStatus = "GaragePiStatus";
+    private static final String SupersedeKeyGaragePiBackgroundStatus = "GaragePiBackgroundStatus";
+
+    public static final int GaragePiSubscriberForeground = 1;
+    public static final int GaragePiSubscriberN33ble1 = 2;
 
     private final Context context;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    private final MutableLiveData<String> garagePiStatus = new MutableLiveData<>();
-    private final MutableLiveData<String> garagePiErrorInfo = new MutableLiveData<>();
+    private final NioTransport transport = new NioTransport();
+    private final NetworkScheduler networkScheduler = new NetworkScheduler(transport);
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<GaragePiStatus> garagePiStatus = new MutableLiveData<>();
+    private final Object garagePiStatusLock = new Object();
+    private GaragePiStatus latestGaragePiStatus;
     private final MutableLiveData<String> fuelTrackerStatus = new MutableLiveData<>();
+    private final MutableLiveData<Integer> fuelTrackerQueuedCount = new MutableLiveData<>();
+    private final FuelTrackerJournal fuelTrackerJournal;
+    private final FuelTrackerUploader fuelTrackerUploader;
+    private final AtomicBoolean fuelTrackerDraining = new AtomicBoolean(false);
+    private final Runnable fuelTrackerRetry = this::drainFuelTrackerJournal;
+    private long fuelTrackerRetryDelayMs = FuelTrackerRetryInitialDelayMs;
+    private final GaragePiConnectionManager garagePiConnectionManager;
+    private final CircuitBreaker garagePiCircuitBreaker;
+    private final GaragePiStatusCache garagePiStatusCache;
+    private final GaragePiSubscription garagePiSubscription;
+    private int garagePiSubscribers = 0;
     private boolean garagePiEnabled;
 
-    public LiveData<String> getGaragePiStatus() { return garagePiStatus; }
-    public LiveData<String> getGaragePiErrorInfo() { return garagePiErrorInfo; }
+    public LiveData<GaragePiStatus> getGaragePiStatus() { return garagePiStatus; }
+    public LiveData<String> getGaragePiDoorStatus() { return garagePiStatusCache.getDisplay(); }
     public LiveData<String> getFuelTrackerStatus() { return fuelTrackerStatus; }
+    public LiveData<Integer> getFuelTrackerQueuedCount() { return fuelTrackerQueuedCount; }
+    public String getGaragePiConnectionStats() { return garagePiConnectionManager.getStatsDescription(); }
+    public String getGaragePiCircuitStats() { return garagePiCircuitBreaker.getStatsDescription(); }
+    public String getNetworkSchedulerStats() { return networkScheduler.getStatsDescription(); }
+    public String getNetworkTransportStats() { return transport.getStatsDescription(); }
+    public String getLatencyReport() { return transport.getLatencies().describe(); }
+    public void dumpLatencyReport() { transport.getLatencies().dumpToLog(); }
 
     public DLZPServerClient(Context applicationContext) {
         this.context = applicationContext;
+        this.garagePiCircuitBreaker = new CircuitBreaker(
+                "GaragePi " + context.getString(R.string.HttpHost),
+                transport,
+                () -> sendGaragePiCmd(Constants.GaragePiCmdStatus, false));
+        this.garagePiConnectionManager = new GaragePiConnectionManager(
+                context.getString(R.string.HttpHost),
+                context.getResources().getInteger(R.integer.HttpGaragePiPort),
+                GaragePiDedupeWindowMs,
+                GaragePiHedgingEnabled,
+                transport,
+                garagePiCircuitBreaker);
+        this.garagePiStatusCache = new GaragePiStatusCache(
+                context.getSharedPreferences(PreferencesName, Context.MODE_PRIVATE),
+                GaragePiStatusTtlMs);
+        this.garagePiSubscription = new GaragePiSubscription(
+                context.getString(R.string.HttpHost),
+                context.getResources().getInteger(R.integer.HttpGaragePiPort),
+                garagePiConnectionManager.getSslContext(),
+                transport,
+                new GaragePiSubscription.Listener() {
+                    @Override
+                    public void onDoorState(String doorState, String description) {
+                        garagePiStatusCache.update(doorState, description);
+                        updateGaragePiStatus((GaragePiStatus status) -> status.withDoorState(doorState, description));
+                    }
+
+                    @Override
+                    public long onPollDue() {
+                        // Polls only keep the door state current; nobody is waiting on them.
+                        sendGaragePiCmd(Constants.GaragePiCmdStatus, false);
+                        return garagePiCircuitBreaker.getRetryInMs();
+                    }
+                });
 
         garagePiEnabled = context.getSharedPreferences(PreferencesName, Context.MODE_PRIVATE)
                 .getBoolean(PreferencesGaragePiEnabled, false);
-        garagePiStatus.postValue(garagePiEnabled ? "not connected" : "locally disabled");
+        latestGaragePiStatus = GaragePiStatus.initial(garagePiEnabled);
+        garagePiStatus.postValue(latestGaragePiStatus);
 
         // TODO consistency?
-        garagePiErrorInfo.postValue("");
         fuelTrackerStatus.postValue("Not Connected");
+        fuelTrackerQueuedCount.postValue(0);
+
+        // The door state is kept current while the app is visible.
+        ProcessLifecycleOwner.get().getLifecycle().addObserver(new DefaultLifecycleObserver() {
+            @Override
+            public void onStart(@NonNull LifecycleOwner owner) {
+                subscribeGaragePiStatus(GaragePiSubscriberForeground);
+            }
+
+            @Override
+            public void onStop(@NonNull LifecycleOwner owner) {
+                unsubscribeGaragePiStatus(GaragePiSubscriberForeground);
+            }
+        });
+
+        fuelTrackerUploader = new FuelTrackerUploader(
+                context.getString(R.string.HttpHost),
+                context.getResources().getInteger(R.integer.HttpFuelTrackerPort),
+                transport,
+                context.getSharedPreferences(PreferencesName, Context.MODE_PRIVATE)
+                        .getInt(PreferencesFuelTrackerBatchSupport, FuelTrackerUploader.BatchSupportUnknown));
+        fuelTrackerJournal = new FuelTrackerJournal(
+                new File(context.getFilesDir(), FuelTrackerJournalFileName), journalExecutor);
+        journalExecutor.submit(() -> {
+            try {
+                fuelTrackerJournal.open();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Unable to open FuelTracker journal, records will not survive restarts: " + e);
+            }
+            updateFuelTrackerQueuedCount();
+            drainFuelTrackerJournal();
+        });
+
+        // Queued FuelTracker records go out as soon as connectivity returns. HttpHost may resolve
+        // differently on the new network, so cached DNS results are dropped.
+        context.getSystemService(ConnectivityManager.class)
+                .registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(@NonNull Network network) {
+                        transport.onNetworkChanged();
+                        garagePiCircuitBreaker.onNetworkChanged();
+                        if(fuelTrackerJournal.getPendingCount() > 0) {
+                            drainFuelTrackerJournal();
+                        }
+                    }
+                });
     }
 
-    // TODO make this more detailed / not just a string for UI to break apart
-    // TODO led needs to warn on these values?
-    private void updateGaragePiStatus(String newStatus, String errorDescription) {
-        garagePiStatus.postValue(newStatus);
-        garagePiErrorInfo.postValue(errorDescription);
-
-        context.sendBroadcast(new Intent()
-                .setAction(GaragePiStatusUpdated)
-                .setPackage(context.getPackageName())
-        );
-
-        if(!errorDescription.isEmpty()) {
-            context.sendBroadcast(new Intent()
-                    .setAction(GaragePiError)
-                    .setPackage(context.getPackageName())
-                    .putExtra(ExtraErrorInfo, errorDescription)
-            );
+    /**
+     * Derives the new GaragePi status from the latest one and publishes it, unless nothing changed.
+     * Besides the LiveData, which only guarantees observers the latest status, every status is
+     * published on ArfugaApp's EventBus, e.g. for waiting on a particular command's outcome.
+     */
+    private void updateGaragePiStatus(UnaryOperator<GaragePiStatus> update) {
+        final GaragePiStatus status;
+        synchronized (garagePiStatusLock) {
+            status = update.apply(latestGaragePiStatus);
+            if(status.equals(latestGaragePiStatus)) {
+                return;
+            }
+            latestGaragePiStatus = status;
         }
+        garagePiStatus.postValue(status);
+        ArfugaApp.getEventBus().publish(status);
     }
 
     // TODO expand this with more info as well?
     private void updateFuelTrackerStatus(String newStatus) {
         fuelTrackerStatus.postValue(newStatus);
-
-        context.sendBroadcast(new Intent()
-                .setAction(FuelTrackerStatusUpdated)
-                .setPackage(context.getPackageName())
-        );
     }
 
     public boolean toggleGaragePiLocallyEnabled() {
         garagePiEnabled = !garagePiEnabled;
         context.getSharedPreferences(PreferencesName, Context.MODE_PRIVATE)
                 .edit().putBoolean(PreferencesGaragePiEnabled, garagePiEnabled).apply();
-        garagePiStatus.postValue(garagePiEnabled ? "not connected" : "locally disabled");
+        final boolean locallyEnabled = garagePiEnabled;
+        updateGaragePiStatus((GaragePiStatus status) -> status.withLocallyEnabled(locallyEnabled));
         Log.i(LOG_TAG, "GaragePi is now locally " + (garagePiEnabled ? "enabled" : "disabled"));
+        if(!garagePiEnabled) {
+            endGaragePiPrewarm();
+        }
+        updateGaragePiSubscription();
         return garagePiEnabled;
     }
 
     public boolean sendGaragePiCmd(String garagePiCommand) {
+        return sendGaragePiCmd(garagePiCommand, true);
+    }
+
+    /**
+     * @param userInitiated False for requests nobody is waiting on, e.g. refreshes in the
+     * background. These only update the door state: their progress isn't shown, and they fail
+     * without publishing an error, so they can't pop up errors or replace the latest command's
+     * status.
+     */
+    private boolean sendGaragePiCmd(String garagePiCommand, boolean userInitiated) {
         if(!garagePiEnabled) {
             Log.i(LOG_TAG, "Not sending command '" + garagePiCommand + "'; GaragePi is locally disabled.");
-            updateGaragePiStatus(
-                    "locally disabled - skipped " + garagePiCommand,
-                    "Command aborted\nGaragePi is locally disabled");
+            if(userInitiated) {
+                updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                        GaragePiStatus.ErrorLocallyDisabled,
+                        "locally disabled - skipped " + garagePiCommand,
+                        "Command aborted\nGaragePi is locally disabled"));
+            }
+            return false;
+        }
+        if(!garagePiCircuitBreaker.tryAcquire()) {
+            Log.i(LOG_TAG, "Not sending command '" + garagePiCommand + "'; GaragePi server is unreachable, retrying in " +
+                    garagePiCircuitBreaker.getRetryInMs() + "ms.");
+            if(userInitiated) {
+                updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                        GaragePiStatus.ErrorUnreachable,
+                        "server unreachable - skipped " + garagePiCommand,
+                        "Command aborted\nGaragePi server is unreachable"));
+            }
             return false;
         }
 
+        // Status requests are just polls, so only the latest one waiting needs to be sent. A
+        // background one mustn't replace one the user is waiting on, so they are kept apart.
+        final boolean isStatusPoll = garagePiCommand.equals(Constants.GaragePiCmdStatus);
+        final int lane = isStatusPoll ? NetworkScheduler.LaneStatus : NetworkScheduler.LaneInteractive;
+        final String supersedeKey = !isStatusPoll ? null
+                : userInitiated ? SupersedeKeyGaragePiStatus : SupersedeKeyGaragePiBackgroundStatus;
         try {
-            executorService.submit(() -> {
-                try {
-                    Log.d(LOG_TAG, "Connecting to GaragePiServer...");
-                    updateGaragePiStatus("connecting to server", "");
-                    final SSLSocket socket =
-                            (SSLSocket) SSLSocketFactory
-                                    .getDefault()
-                                    .createSocket(
-                                            context.getString(R.string.HttpHost),
-                                            context.getResources().getInteger(R.integer.HttpGaragePiPort)
-                                    );
-
-                    if (!HttpsURLConnection
-                            .getDefaultHostnameVerifier()
-                            .verify(context.getString(R.string.HttpHost), socket.getSession())) {
-                        throw new SSLHandshakeException("");
-                    }
+            networkScheduler.submit(lane, supersedeKey, (Runnable onFinished) -> {
+                Log.d(LOG_TAG, "Connecting to GaragePiServer...");
+                if(userInitiated) {
+                    updateGaragePiStatus((GaragePiStatus status) ->
+                            status.withActivity(GaragePiStatus.ActivityConnecting, garagePiCommand));
+                }
+                garagePiConnectionManager.sendCommand(
+                        context.getString(R.string.HttpKey),
+                        garagePiCommand,
+                        !isStatusPoll,
+                        isStatusPoll ? GaragePiStatusDeadlineMs : GaragePiCommandDeadlineMs,
+                        new GaragePiConnectionManager.Callback() {
+                            @Override
+                            public void onSent() {
+                                Log.d(LOG_TAG, "Sent GaragePi command " + garagePiCommand + ", waiting for response...");
+                                if(userInitiated) {
+                                    updateGaragePiStatus((GaragePiStatus status) ->
+                                            status.withActivity(GaragePiStatus.ActivitySent, garagePiCommand));
+                                }
+                            }
+
+                            @Override
+                            public void onResponse(GaragePiProtocol.Response response) {
+                                Log.d(LOG_TAG, "Got GaragePi response: " + response.description);
+                                Log.v(LOG_TAG, "GaragePi connections - " + garagePiConnectionManager.getStatsDescription());
+                                if(userInitiated) {
+                                    updateGaragePiStatus((GaragePiStatus status) ->
+                                            status.withResponse(garagePiCommand, response));
+                                } else if (response.isSuccess) {
+                                    updateGaragePiStatus((GaragePiStatus status) ->
+                                            status.withBackgroundResponse(response));
+                                }
+                                if(response.isSuccess && !response.doorState.isEmpty()) {
+                                    garagePiStatusCache.update(response.doorState, response.description);
+                                }
+                                onFinished.run();
+                            }
+
+                            @Override
+                            public void onFailure(IOException e) {
+                                if(!userInitiated) {
+                                    Log.i(LOG_TAG, "Background GaragePi " + garagePiCommand + " failed: " + e);
+                                    onFinished.run();
+                                    return;
+                                }
+                                if(e instanceof SocketTimeoutException) {
+                                    Log.w(LOG_TAG, "GaragePi command timed out: " + e);
+                                    updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                                            GaragePiStatus.ErrorTimeout, "timed out: " + garagePiCommand, e.getMessage()));
+                                } else if (e instanceof SSLHandshakeException) {
+                                    Log.w(LOG_TAG, "GaragePi encountered SSLHandshakeException: " + e);
+                                    updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                                            GaragePiStatus.ErrorTls, "SSLHandshakeException", e.toString()));
+                                } else if (e instanceof UnknownHostException) {
+                                    Log.w(LOG_TAG, "GaragePi encountered UnknownHostException: " + e);
+                                    updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                                            GaragePiStatus.ErrorUnknownHost, "UnknownHostException", e.toString()));
+                                } else {
+                                    Log.w(LOG_TAG, "GaragePi encountered IOException: " + e);
+                                    updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                                            GaragePiStatus.ErrorNetwork, "IOException", e.toString()));
+                                }
+                                onFinished.run();
+                            }
+                        });
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "GaragePi encountered RejectedExecutionException: " + e);
+            if(userInitiated) {
+                updateGaragePiStatus((GaragePiStatus status) -> status.withError(garagePiCommand,
+                        GaragePiStatus.ErrorBusy, "RejectedExecutionException", e.toString()));
+            }
+            return false;
+        }
+        garagePiSubscription.onCommandSent(garagePiCommand);
+        return true;
+    }
 
-                    final String body = context.getString(R.string.HttpKey) + "\t" + garagePiCommand;
-                    final OutputStream out = socket.getOutputStream();
-                    out.write(body.getBytes());
-                    out.flush();
+    /**
+     * Asks the GaragePi server for the door state, unless the cached state is recent enough to
+     * show as is. The cached state stays visible (see getGaragePiDoorStatus) while the request is
+     * in flight.
+     * @return False if a request was needed but could not be queued.
+     */
+    public boolean refreshGaragePiStatus() {
+        return isGaragePiDoorStateCurrent() || sendGaragePiCmd(Constants.GaragePiCmdStatus);
+    }
 
+    /**
+     * Like refreshGaragePiStatus, for refreshes the user didn't ask for, e.g. when the GaragePi
+     * screen is shown. Nothing is sent while GaragePi is locally disabled or the server is known to
+     * be unreachable, and only the door state is updated, without showing any progress or errors.
+     */
+    public void refreshGaragePiStatusInBackground() {
+        if(!isGaragePiDoorStateCurrent()) {
+            sendGaragePiCmd(Constants.GaragePiCmdStatus, false);
+        }
+    }
 
-                    Log.d(LOG_TAG, "Sent GaragePi command " + garagePiCommand + ", waiting for response...");
-                    updateGaragePiStatus("sent request: " + garagePiCommand, "");
-                    final int readSize = 10240;
-                    final byte[] responseBytes = new byte[10240];
-                    final int bytesRead = socket.getInputStream().read(responseBytes);
+    private boolean isGaragePiDoorStateCurrent() {
+        if(garagePiSubscription.isPushing()) {
+            Log.d(LOG_TAG, "GaragePi door state is pushed, not requesting status.");
+            return true;
+        }
+        if(garagePiStatusCache.getAgeMs() < GaragePiStatusFreshMs) {
+            Log.d(LOG_TAG, "Cached GaragePi door state is fresh, not requesting status.");
+            return true;
+        }
+        return false;
+    }
 
-                    if(bytesRead >= readSize) {
-                        Log.w(LOG_TAG, "More data to read? Bytes read matched max read size!");
-                    }
-                    final String response =
-                            new String(responseBytes)
-                                    .substring(0, bytesRead)
-                                    .replace("\t", " - ");
+    /**
+     * Keeps the door state current (see getGaragePiDoorStatus) until every subscriber has
+     * unsubscribed. Changes are pushed by the GaragePi server over one long-lived connection, or
+     * polled for if the server can't push them.
+     * @param subscriber One of the GaragePiSubscriber constants.
+     */
+    public synchronized void subscribeGaragePiStatus(int subscriber) {
+        garagePiSubscribers |= subscriber;
+        updateGaragePiSubscription();
+    }
 
+    public synchronized void unsubscribeGaragePiStatus(int subscriber) {
+        garagePiSubscribers &= ~subscriber;
+        updateGaragePiSubscription();
+    }
 
-                    Log.d(LOG_TAG, "Got GaragePi response: " + response);
-                    if(response.trim().isEmpty()) {
-                        updateGaragePiStatus("empty response: " + garagePiCommand, "");
-                    } else {
-                        updateGaragePiStatus(response, "");
-                    }
+    private synchronized void updateGaragePiSubscription() {
+        if(garagePiEnabled && garagePiSubscribers != 0) {
+            garagePiSubscription.start(context.getString(R.string.HttpKey));
+        } else {
+            garagePiSubscription.stop();
+        }
+    }
 
-                    socket.close();
-                } catch (SSLHandshakeException e) {
-                    Log.w(LOG_TAG, "GaragePi encountered SSLHandshakeException: " + e);
-                    updateGaragePiStatus("SSLHandshakeException", e.toString());
-                } catch (UnknownHostException e) {
-                    Log.w(LOG_TAG, "GaragePi encountered UnknownHostException: " + e);
-                    updateGaragePiStatus("UnknownHostException", e.toString());
-                } catch (IOException e) {
-                    Log.w(LOG_TAG, "GaragePi encountered IOException: " + e);
-                    updateGaragePiStatus("IOException", e.toString());
-                }
-            });
-        } catch (RejectedExecutionException e) {
-            Log.e(LOG_TAG, "GaragePi encountered RejectedExecutionException: " + e);
-            updateGaragePiStatus("RejectedExecutionException", e.toString());
-            return false;
+    /**
+     * Speculatively opens the connection to the GaragePi server so that the next command only pays
+     * for its own round trip. The connection is held until endGaragePiPrewarm is called or it has
+     * been idle for the pre-warm idle budget.
+     */
+    public void prewarmGaragePi() {
+        if(!garagePiEnabled) {
+            Log.d(LOG_TAG, "Not pre-warming GaragePi; GaragePi is locally disabled.");
+            return;
         }
-        return true;
+
+        garagePiConnectionManager.prewarm(GaragePiPrewarmIdleBudgetMs);
+    }
+
+    public void endGaragePiPrewarm() {
+        garagePiConnectionManager.endPrewarm();
     }
 
+    /**
+     * Durably queues the FuelTracker record and uploads it (after any records queued before it) as
+     * soon as the FuelTrackerServer can be reached.
+     */
     public void sendFuelTrackerMessage(String message) {
+        updateFuelTrackerStatus("Saving...");
         try {
-            executorService.submit(() -> {
-                try {
-                    Log.d(LOG_TAG, "Connecting to FuelTrackerServer...");
-                    updateFuelTrackerStatus("Connecting to Server...");
-                    final Socket clientSocket =
-                            new Socket(
-                                    context.getString(R.string.HttpHost),
-                                    context.getResources().getInteger(R.integer.HttpFuelTrackerPort)
-                            );
-
-                    final PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    final BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-
-                    out.println(message);
-                    out.flush();
-
-
-                    Log.d(LOG_TAG, "Sent FuelTracker message: " + message + ", waiting for response...");
-                    boolean finishedCleanly = false;
-                    String input;
-                    while (!finishedCleanly && (input = in.readLine()) != null) {
-                        Log.d(LOG_TAG, "FuelTracker received: " + input);
-                        if (input.equals("STILLTHERE?")) {
-                            out.println("YESSTILLHERE!");
-                        } else if (input.startsWith("GOODBYE!")) {
-                            out.println("GOODBYE!");
-                        } else if (input.toLowerCase().startsWith("received")) {
-                            out.println("GOODBYE!");
-                            out.flush();
-                            finishedCleanly = true;
-                        } else if (!input.equals("HELLO!")) {
-                            Log.e(LOG_TAG, "FuelTracker received unexpected input: " + input);
-                        }
-                    }
+            // Appends are ordered behind the journal replay on the journal executor.
+            journalExecutor.submit(() -> fuelTrackerJournal.append(message, () -> {
+                Log.d(LOG_TAG, "FuelTracker record saved to journal.");
+                updateFuelTrackerStatus(FuelTrackerStatusValueQueued);
+                updateFuelTrackerQueuedCount();
+                drainFuelTrackerJournal();
+            }));
+        } catch (RejectedExecutionException e) {
+            Log.e(LOG_TAG, "FuelTracker encountered RejectedExecutionException: " + e);
+            updateFuelTrackerStatus("RejectedExecutionException");
+        }
+    }
 
-                    if(finishedCleanly) {
-                        Log.d(LOG_TAG, "FuelTracker request completed.");
-                        updateFuelTrackerStatus(FuelTrackerStatusValueSuccess);
-                    } else {
-                        Log.w(LOG_TAG, "FuelTracker connection aborted abruptly.");
-                        updateFuelTrackerStatus("Connection Aborted");
-                    }
+    private void updateFuelTrackerQueuedCount() {
+        fuelTrackerQueuedCount.postValue(fuelTrackerJournal.getPendingCount());
+    }
 
-                    in.close();
-                    out.close();
-                    clientSocket.close();
-                } catch (UnknownHostException e) {
-                    Log.w(LOG_TAG, "FuelTracker encountered UnknownHostException: " + e);
-                    updateFuelTrackerStatus("UnknownHostException");
-                } catch (IOException e) {
-                    Log.w(LOG_TAG, "FuelTracker encountered IOException: " + e);
-                    updateFuelTrackerStatus("IOException");
-                }
-            });
+    /**
+     * Uploads queued FuelTracker records in order until the journal is empty or an upload fails.
+     * Failed uploads are retried with backoff, or sooner once a network becomes available.
+     */
+    private void drainFuelTrackerJournal() {
+        if(!fuelTrackerDraining.compareAndSet(false, true)) {
+            return;
+        }
+        handler.removeCallbacks(fuelTrackerRetry);
+
+        try {
+            networkScheduler.submit(NetworkScheduler.LaneBulk, (Runnable onFinished) ->
+                    fuelTrackerUploader.uploadPending(fuelTrackerJournal, new FuelTrackerUploader.Listener() {
+                        @Override
+                        public void onStatusChanged(String status) { updateFuelTrackerStatus(status); }
+
+                        @Override
+                        public void onRecordsUploaded() { updateFuelTrackerQueuedCount(); }
+
+                        @Override
+                        public void onBatchSupportFound(int batchSupport) {
+                            context.getSharedPreferences(PreferencesName, Context.MODE_PRIVATE)
+                                    .edit().putInt(PreferencesFuelTrackerBatchSupport, batchSupport).apply();
+                        }
+
+                        @Override
+                        public void onFinished(boolean uploadedAll) {
+                            onFinished.run();
+                            fuelTrackerDraining.set(false);
+
+                            if(!uploadedAll) {
+                                Log.i(LOG_TAG, "FuelTracker upload failed, retrying in " + fuelTrackerRetryDelayMs + "ms");
+                                handler.postDelayed(fuelTrackerRetry, fuelTrackerRetryDelayMs);
+                                fuelTrackerRetryDelayMs = Math.min(fuelTrackerRetryDelayMs * 2, FuelTrackerRetryMaxDelayMs);
+                            } else {
+                                fuelTrackerRetryDelayMs = FuelTrackerRetryInitialDelayMs;
+                                if(fuelTrackerJournal.peek() != null) {
+                                    // Appended while this drain was finishing up.
+                                    drainFuelTrackerJournal();
+                                }
+                            }
+                        }
+                    }));
         } catch (RejectedExecutionException e) {
-            Log.e(LOG_TAG, "GaragePi encountered RejectedExecutionException: " + e);
+            fuelTrackerDraining.set(false);
+            Log.e(LOG_TAG, "FuelTracker encountered RejectedExecutionException: " + e);
             updateFuelTrackerStatus("RejectedExecutionException");
         }
     }
@@ -0,0 +1,259 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk journal of FuelTracker records that have not yet been accepted by the
+ * FuelTrackerServer. Records survive process death and are replayed, in order, when the journal is
+ * opened again.
+ *
+ * Each entry on disk is laid out as:
+ *
+ *   type u8 | sequence u64 | payload length u32 | payload | crc32 u32
+ *
+ * where the CRC covers everything before it. A pending entry carries the record's message; an
+ * acknowledged entry marks the pending entry with the same sequence as uploaded. A torn or corrupt
+ * tail left behind by a crash is truncated away on replay.
+ *
+ * Writes are group-committed on the provided disk executor: entries appended while a flush is
+ * already queued share that flush's single fsync.
+ */
+class FuelTrackerJournal {
+    private static final String LOG_TAG = "FuelTrackerJournal";
+    private static final int EntryPending = 1;
+    private static final int EntryAcknowledged = 2;
+    private static final int EntryHeaderSize = 1 + 8 + 4;
+    private static final int EntryCrcSize = 4;
+    private static final int MaxPayloadSize = 64 * 1024;
+    private static final long CompactThresholdBytes = 64 * 1024;
+
+    static class Record {
+        final long sequence;
+        final String message;
+
+        Record(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+
+    private final File file;
+    private final Executor diskExecutor;
+    private final ArrayDeque<Record> pendingRecords = new ArrayDeque<>();
+    private final ByteArrayOutputStream unflushedEntries = new ByteArrayOutputStream();
+    private final List<Runnable> onFlushedCallbacks = new ArrayList<>();
+    private RandomAccessFile journalFile = null;
+    private long nextSequence = 1;
+    private boolean flushScheduled = false;
+
+    FuelTrackerJournal(File file, Executor diskExecutor) {
+        this.file = file;
+        this.diskExecutor = diskExecutor;
+    }
+
+    /**
+     * Opens the journal file and replays any records still pending from previous runs. Must be
+     * called on the disk executor before anything else.
+     */
+    void open() throws IOException {
+        journalFile = new RandomAccessFile(file, "rw");
+        final FileChannel channel = journalFile.getChannel();
+        final ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+        while(contents.hasRemaining() && channel.read(contents, contents.position()) > 0) {
+            // Keep reading until the whole file is in memory.
+        }
+        contents.flip();
+
+        // Compaction can leave a pending entry both in the compacted file and after it.
+        final Map<Long, Record> replayed = new LinkedHashMap<>();
+        long validLength = 0;
+        final CRC32 crc = new CRC32();
+        while(contents.remaining() >= EntryHeaderSize + EntryCrcSize) {
+            final int start = contents.position();
+            final int type = contents.get() & 0xFF;
+            final long sequence = contents.getLong();
+            final int payloadSize = contents.getInt();
+            if(payloadSize < 0 || payloadSize > MaxPayloadSize || contents.remaining() < payloadSize + EntryCrcSize) {
+                break;
+            }
+
+            crc.reset();
+            crc.update(contents.array(), start, EntryHeaderSize + payloadSize);
+            final String payload = new String(contents.array(), start + EntryHeaderSize, payloadSize, StandardCharsets.UTF_8);
+            contents.position(start + EntryHeaderSize + payloadSize);
+            if((int) crc.getValue() != contents.getInt()) {
+                break;
+            }
+
+            if(type == EntryPending) {
+                if(!replayed.containsKey(sequence) && sequence >= nextSequence) {
+                    replayed.put(sequence, new Record(sequence, payload));
+                }
+            } else if (type == EntryAcknowledged) {
+                replayed.remove(sequence);
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            validLength = contents.position();
+        }
+
+        if(validLength != channel.size()) {
+            Log.w(LOG_TAG, "Truncating " + (channel.size() - validLength) + " bytes of torn journal tail");
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        journalFile.seek(validLength);
+
+        synchronized (this) {
+            pendingRecords.addAll(replayed.values());
+        }
+        Log.i(LOG_TAG, "Replayed FuelTracker journal, " + replayed.size() + " records pending");
+    }
+
+    synchronized int getPendingCount() { return pendingRecords.size(); }
+
+    synchronized Record peek() { return pendingRecords.peekFirst(); }
+
+    /**
+     * @return Up to maxRecords of the oldest pending records, oldest first.
+     */
+    synchronized List<Record> peek(int maxRecords) {
+        final List<Record> records = new ArrayList<>(Math.min(maxRecords, pendingRecords.size()));
+        for(Record record : pendingRecords) {
+            if(records.size() >= maxRecords) {
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Appends a new pending record.
+     * @param onDurable Run on the disk executor once the record has been fsynced.
+     */
+    synchronized Record append(String message, Runnable onDurable) {
+        final Record record = new Record(nextSequence++, message);
+        pendingRecords.addLast(record);
+        writeEntry(unflushedEntries, EntryPending, record.sequence, message);
+        onFlushedCallbacks.add(onDurable);
+        scheduleFlush();
+        return record;
+    }
+
+    /**
+     * Marks the record as uploaded so it is not replayed again.
+     */
+    synchronized void acknowledge(long sequence) {
+        for(Iterator<Record> iterator = pendingRecords.iterator(); iterator.hasNext(); ) {
+            if(iterator.next().sequence == sequence) {
+                iterator.remove();
+                break;
+            }
+        }
+        writeEntry(unflushedEntries, EntryAcknowledged, sequence, "");
+        scheduleFlush();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int type, long sequence, String payload) {
+        final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer entry = ByteBuffer.allocate(EntryHeaderSize + payloadBytes.length + EntryCrcSize);
+        entry.put((byte) type);
+        entry.putLong(sequence);
+        entry.putInt(payloadBytes.length);
+        entry.put(payloadBytes);
+
+        final CRC32 crc = new CRC32();
+        crc.update(entry.array(), 0, entry.position());
+        entry.putInt((int) crc.getValue());
+        out.write(entry.array(), 0, entry.position());
+    }
+
+    private void scheduleFlush() {
+        if(flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        diskExecutor.execute(this::flush);
+    }
+
+    private void flush() {
+        final byte[] entries;
+        final List<Runnable> callbacks;
+        final boolean hasPendingRecords;
+        synchronized (this) {
+            flushScheduled = false;
+            entries = unflushedEntries.toByteArray();
+            unflushedEntries.reset();
+            callbacks = new ArrayList<>(onFlushedCallbacks);
+            onFlushedCallbacks.clear();
+            hasPendingRecords = !pendingRecords.isEmpty();
+        }
+
+        try {
+            if(journalFile == null) {
+                throw new IOException("Journal file is not open");
+            }
+            journalFile.write(entries);
+            journalFile.getChannel().force(false);
+
+            if(!hasPendingRecords) {
+                // Everything written so far has been acknowledged; start the journal over.
+                journalFile.getChannel().truncate(0);
+                journalFile.seek(0);
+            } else if(journalFile.length() > CompactThresholdBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            // The records are still held in memory and will be uploaded this run, but would not
+            // survive a process restart.
+            Log.e(LOG_TAG, "Unable to write FuelTracker journal: " + e);
+        }
+
+        for(Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the still-pending records, replacing the old file atomically.
+     */
+    private void compact() throws IOException {
+        final File compactedFile = new File(file.getPath() + ".compact");
+        final ByteArrayOutputStream liveEntries = new ByteArrayOutputStream();
+        synchronized (this) {
+            for(Record record : pendingRecords) {
+                writeEntry(liveEntries, EntryPending, record.sequence, record.message);
+            }
+        }
+
+        try (RandomAccessFile compacted = new RandomAccessFile(compactedFile, "rw")) {
+            compacted.setLength(0);
+            compacted.write(liveEntries.toByteArray());
+            compacted.getChannel().force(true);
+        }
+
+        journalFile.close();
+        if(!compactedFile.renameTo(file)) {
+            throw new IOException("Unable to replace journal with compacted journal");
+        }
+        journalFile = new RandomAccessFile(file, "rw");
+        journalFile.seek(journalFile.length());
+        Log.d(LOG_TAG, "Compacted FuelTracker journal");
+    }
+}
@@ -0,0 +1,368 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Uploads the records queued in a FuelTrackerJournal to the FuelTrackerServer.
+ *
+ * Servers that support batching receive many records per session: the client announces a batch
+ * with "BATCH:<n>", writes all n NEWDATA records back to back without waiting on each, and the
+ * server acknowledges them together with a single "received <n>". Further batches follow over the
+ * same session until the journal is empty, so a backlog costs roughly one round trip per batch
+ * instead of a full session per record.
+ *
+ * Servers that support batching say so in their greeting, "HELLO! BATCH". Single-record servers
+ * greet with a plain "HELLO!" (or not at all within GreetingTimeoutMs) and get the original
+ * one-record-per-session exchange, so they are never sent anything but records and the replies
+ * they ask for, which they could otherwise store as a record. What the greeting said is handed to
+ * the listener to be persisted and passed in again after a restart. A session with a known
+ * single-record server sends its record right away without waiting for the greeting, which is
+ * still checked in case the server has been upgraded since.
+ *
+ * The server must answer each request within ResponseTimeoutMs, otherwise the session is dropped
+ * and the records stay queued, rather than waiting on a half-dead connection indefinitely.
+ *
+ * Sessions are driven by the NioTransport's thread. Only one upload runs at a time.
+ */
+class FuelTrackerUploader implements NioConnection.Listener {
+    private static final String LOG_TAG = "FuelTrackerUploader";
+    private static final int MaxBatchSize = 32;
+    private static final long ResponseTimeoutMs = 20 * 1000;
+    private static final long GreetingTimeoutMs = 5 * 1000;
+    private static final String Greeting = "HELLO!";
+    private static final String GreetingBatchToken = " BATCH";
+
+    static final int BatchSupportUnknown = 0;
+    static final int BatchSupported = 1;
+    static final int BatchUnsupported = 2;
+
+    private static final int StateAwaitingGreeting = 1;
+    private static final int StateAwaitingBatchReceipt = 2;
+    private static final int StateAwaitingRecordReceipt = 3;
+
+    /**
+     * Called on the transport thread as the upload progresses.
+     */
+    interface Listener {
+        void onStatusChanged(String status);
+        void onRecordsUploaded();
+
+        /**
+         * The server's greeting showed whether it supports batching, differently than known so
+         * far.
+         * @param batchSupport One of the BatchSupport constants, to pass to the constructor next
+         * time.
+         */
+        void onBatchSupportFound(int batchSupport);
+
+        /**
+         * @param uploadedAll True if every pending record was uploaded.
+         */
+        void onFinished(boolean uploadedAll);
+    }
+
+    private final String host;
+    private final int port;
+    private final NioTransport transport;
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+    private int batchSupport;
+
+    // State of the upload in progress, only touched on the transport thread.
+    private FuelTrackerJournal journal = null;
+    private Listener listener = null;
+    private NioConnection connection = null;
+    private NioTransport.Timer responseTimeout = null;
+    private int state = 0;
+    private long requestSentNs = 0;
+    private List<FuelTrackerJournal.Record> batch = null;
+    private FuelTrackerJournal.Record record = null;
+
+    /**
+     * @param batchSupport What an earlier greeting showed, one of the BatchSupport constants.
+     */
+    FuelTrackerUploader(String host, int port, NioTransport transport, int batchSupport) {
+        this.host = host;
+        this.port = port;
+        this.transport = transport;
+        this.batchSupport = batchSupport;
+    }
+
+    /**
+     * Uploads and acknowledges pending records in order until the journal is empty or an upload
+     * fails, then tells the listener which it was. Safe to call from any thread.
+     */
+    void uploadPending(FuelTrackerJournal journal, Listener listener) {
+        transport.post(() -> {
+            this.journal = journal;
+            this.listener = listener;
+            startSession();
+        });
+    }
+
+    private void startSession() {
+        if(journal.peek() == null) {
+            finish(true);
+            return;
+        }
+
+        Log.d(LOG_TAG, "Connecting to FuelTrackerServer...");
+        listener.onStatusChanged("Connecting to Server...");
+        lineBytes.reset();
+        connection = transport.connect(host, port, null, this);
+    }
+
+    private void finish(boolean uploadedAll) {
+        closeConnection();
+
+        final Listener finishedListener = listener;
+        journal = null;
+        listener = null;
+        batch = null;
+        record = null;
+        finishedListener.onFinished(uploadedAll);
+    }
+
+    @Override
+    public void onConnected(NioConnection readyConnection) {
+        if(batchSupport == BatchUnsupported) {
+            sendRecord();
+            return;
+        }
+
+        // Nothing is sent until the greeting shows the server takes batches.
+        state = StateAwaitingGreeting;
+        cancelResponseTimeout();
+        responseTimeout = transport.schedule(this::onGreetingTimeout, GreetingTimeoutMs);
+    }
+
+    private void onGreetingTimeout() {
+        responseTimeout = null;
+        if(state != StateAwaitingGreeting) {
+            return;
+        }
+        Log.i(LOG_TAG, "FuelTrackerServer did not greet within " + GreetingTimeoutMs + "ms, sending single records");
+        setBatchSupport(BatchUnsupported);
+        sendRecord();
+    }
+
+    private void onGreeting(String greeting) {
+        final boolean supported = greeting.contains(GreetingBatchToken);
+        setBatchSupport(supported ? BatchSupported : BatchUnsupported);
+        if(state != StateAwaitingGreeting) {
+            return;
+        }
+        if(supported) {
+            sendNextBatch();
+        } else {
+            sendRecord();
+        }
+    }
+
+    private void setBatchSupport(int newBatchSupport) {
+        if(newBatchSupport == batchSupport) {
+            return;
+        }
+        Log.i(LOG_TAG, newBatchSupport == BatchSupported
+                ? "FuelTrackerServer supports batched uploads"
+                : "FuelTrackerServer does not support batches");
+        batchSupport = newBatchSupport;
+        listener.onBatchSupportFound(newBatchSupport);
+    }
+
+    private void sendRecord() {
+        record = journal.peek();
+        writeLines(record.message);
+        requestSentNs = System.nanoTime();
+        state = StateAwaitingRecordReceipt;
+        awaitResponse();
+        Log.d(LOG_TAG, "Sent FuelTracker message: " + record.message + ", waiting for response...");
+    }
+
+    private void sendNextBatch() {
+        batch = journal.peek(MaxBatchSize);
+        if(batch.isEmpty()) {
+            writeLines("GOODBYE!");
+            Log.d(LOG_TAG, "FuelTracker batched upload completed.");
+            listener.onStatusChanged(DLZPServerClient.FuelTrackerStatusValueSuccess);
+            finish(true);
+            return;
+        }
+
+        listener.onStatusChanged("Sending " + batch.size() + " records...");
+        // The whole batch goes out in as few packets as possible, then gets one receipt.
+        final StringBuilder lines = new StringBuilder("BATCH:").append(batch.size());
+        for(FuelTrackerJournal.Record batchRecord : batch) {
+            lines.append('\n').append(batchRecord.message);
+        }
+        writeLines(lines.toString());
+        requestSentNs = System.nanoTime();
+        state = StateAwaitingBatchReceipt;
+        awaitResponse();
+    }
+
+    private void writeLines(String lines) {
+        connection.write((lines + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void closeConnection() {
+        cancelResponseTimeout();
+        if(connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    /**
+     * (Re)starts the time the server has to send its next line.
+     */
+    private void awaitResponse() {
+        cancelResponseTimeout();
+        final NioConnection waitingConnection = connection;
+        responseTimeout = transport.schedule(() -> waitingConnection.fail(
+                new SocketTimeoutException("FuelTrackerServer did not respond within " + ResponseTimeoutMs + "ms")),
+                ResponseTimeoutMs);
+    }
+
+    private void cancelResponseTimeout() {
+        if(responseTimeout != null) {
+            responseTimeout.cancel();
+            responseTimeout = null;
+        }
+    }
+
+    @Override
+    public void onData(NioConnection dataConnection, ByteBuffer data) {
+        while(data.hasRemaining() && dataConnection == connection) {
+            final byte next = data.get();
+            if(next != '\n') {
+                lineBytes.write(next);
+                continue;
+            }
+
+            String line = new String(lineBytes.toByteArray(), StandardCharsets.UTF_8);
+            lineBytes.reset();
+            if(line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            onLine(line);
+        }
+    }
+
+    private void onLine(String input) {
+        Log.d(LOG_TAG, "FuelTracker received: " + input);
+        // Any line shows the server is still there; the deadline restarts for the next one.
+        awaitResponse();
+        if(input.equals("STILLTHERE?")) {
+            writeLines("YESSTILLHERE!");
+            return;
+        }
+        if(input.startsWith(Greeting)) {
+            onGreeting(input);
+            return;
+        }
+
+        switch (state) {
+            case StateAwaitingBatchReceipt:
+                // Batches aren't held back for BATCHOK, but it's still sent.
+                if(!input.startsWith("BATCHOK")) {
+                    onBatchReceipt(input);
+                }
+                break;
+            case StateAwaitingRecordReceipt:
+                if(input.startsWith("GOODBYE!")) {
+                    writeLines("GOODBYE!");
+                } else if (input.toLowerCase().startsWith("received")) {
+                    writeLines("GOODBYE!");
+                    Log.d(LOG_TAG, "FuelTracker request completed.");
+                    transport.getLatencies().recordSince(PhaseLatencies.PhaseFuelTrackerResponse, requestSentNs);
+                    listener.onStatusChanged(DLZPServerClient.FuelTrackerStatusValueSuccess);
+                    journal.acknowledge(record.sequence);
+                    listener.onRecordsUploaded();
+
+                    // The single-record exchange takes a session per record.
+                    closeConnection();
+                    startSession();
+                } else {
+                    Log.e(LOG_TAG, "FuelTracker received unexpected input: " + input);
+                }
+                break;
+            default:
+                Log.e(LOG_TAG, "FuelTracker received unexpected input: " + input);
+                break;
+        }
+    }
+
+    private void onBatchReceipt(String receipt) {
+        if(!receipt.toLowerCase().startsWith("received")) {
+            Log.w(LOG_TAG, "FuelTracker batch was not acknowledged: " + receipt);
+            listener.onStatusChanged("Connection Aborted");
+            finish(false);
+            return;
+        }
+
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseFuelTrackerResponse, requestSentNs);
+        final int receivedCount = parseReceivedCount(receipt, batch.size());
+        for(int i = 0; i < receivedCount; i++) {
+            journal.acknowledge(batch.get(i).sequence);
+        }
+        listener.onRecordsUploaded();
+        Log.d(LOG_TAG, "FuelTracker batch acknowledged, " + receivedCount + "/" + batch.size() + " records");
+        if(receivedCount < batch.size()) {
+            listener.onStatusChanged("Connection Aborted");
+            finish(false);
+            return;
+        }
+        sendNextBatch();
+    }
+
+    /**
+     * @return How many records of the batch the "received <n>" receipt covers. A receipt without a
+     * count covers the whole batch.
+     */
+    private static int parseReceivedCount(String receipt, int batchSize) {
+        final String count = receipt.substring("received".length()).trim();
+        if(count.isEmpty()) {
+            return batchSize;
+        }
+
+        try {
+            return Math.max(0, Math.min(batchSize, Integer.parseInt(count)));
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "Unable to parse FuelTracker receipt: " + receipt);
+            return 0;
+        }
+    }
+
+    @Override
+    public void onClosed(NioConnection closedConnection, IOException cause) {
+        if(closedConnection != connection) {
+            return;
+        }
+        connection = null;
+        cancelResponseTimeout();
+
+        if(cause instanceof SocketTimeoutException) {
+            Log.w(LOG_TAG, "FuelTracker timed out: " + cause);
+            listener.onStatusChanged("Timeout");
+        } else if (cause instanceof EOFException) {
+            Log.w(LOG_TAG, "FuelTracker connection aborted abruptly.");
+            listener.onStatusChanged("Connection Aborted");
+        } else if (cause instanceof UnknownHostException) {
+            Log.w(LOG_TAG, "FuelTracker encountered UnknownHostException: " + cause);
+            listener.onStatusChanged("UnknownHostException");
+        } else {
+            Log.w(LOG_TAG, "FuelTracker encountered IOException: " + cause);
+            listener.onStatusChanged("IOException");
+        }
+        finish(false);
+    }
+}
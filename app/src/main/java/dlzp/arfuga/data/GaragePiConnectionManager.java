@@ -0,0 +1,825 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * Keeps a warm, keep-alive TLS connection to the GaragePi server for DLZPServerClient. A dedicated
+ * SSLContext caches TLS sessions so that any new connection only needs an abbreviated (resumed)
+ * handshake instead of a full one.
+ *
+ * Commands are queued and sent one at a time over the connection, with interactive commands
+ * queued ahead of background ones. Everything runs on the NioTransport's thread, so waiting for a
+ * response doesn't hold a thread.
+ *
+ * A kept-alive connection may have been dropped by the server or the network while idle. When a
+ * reused connection fails, an idempotent command is transparently retried once over a fresh
+ * connection. Any other command fails instead, as the server may already have acted on it (e.g.
+ * moved the door), and only the user can tell whether to send it again. If the server turns out to
+ * close connections after every response, this stops trying to reuse them and relies on session
+ * resumption alone.
+ *
+ * Identical idempotent commands (e.g. status) that are already queued or in flight are coalesced:
+ * later requests join the pending one and share its response. Other commands (e.g. toggle) are
+ * only deduplicated when repeated within a short window, as repeating them on purpose is
+ * meaningful; a repeat within the window shares the first request's response instead of sending
+ * the command again.
+ *
+ * Every command carries a deadline covering everything from connecting to reading the response;
+ * a command that misses it fails with a SocketTimeoutException, and the connection it was using is
+ * dropped rather than left waiting on a hung socket. Idempotent commands can also be hedged: if
+ * one takes longer than that command's recent p95 latency, the same command is sent again over a
+ * second connection, and whichever response arrives first is used.
+ *
+ * The first connection also negotiates which GaragePi protocol version the server speaks.
+ *
+ * The outcome of every network attempt is reported to the CircuitBreaker once, however many
+ * callers share it: a response (even a malformed one) or a ready connection is a success, and a
+ * connection that can't be set up or fails under a command on a fresh connection is a failure. A
+ * kept-alive connection found stale is not, as it says nothing about whether the server is up.
+ *
+ * A connection can also be pre-warmed before any command is known (e.g. as soon as N33ble1
+ * connects), so that DNS, TCP and TLS setup are already paid for when the first command is sent. A
+ * pre-warmed connection is held until its idle budget runs out or the pre-warm is ended.
+ */
+class GaragePiConnectionManager implements NioConnection.Listener {
+    private static final String LOG_TAG = "GaragePiConnectionManager";
+    private static final int SessionCacheSize = 4;
+    private static final int SessionTimeoutSeconds = 24 * 60 * 60;
+    private static final long MaxIdleReuseMs = 30000;
+    private static final long NotPrewarming = -1;
+    private static final int LatencySamples = 32;
+    private static final int MinHedgeSamples = 8;
+    private static final long MinHedgeDelayMs = 200;
+
+    /**
+     * Called on the transport thread as the command progresses.
+     */
+    interface Callback {
+        void onSent();
+        void onResponse(GaragePiProtocol.Response response);
+        void onFailure(IOException e);
+    }
+
+    private static class PendingCommand {
+        final String key;
+        final String garagePiCommand;
+        final boolean interactive; // Which queue it waits in.
+        final List<Callback> callbacks = new ArrayList<>();
+        final long submittedNs = System.nanoTime();
+        long sentNs = 0;
+        boolean sent = false;
+        boolean retried = false;
+        GaragePiProtocol.Response response = null;
+        NioTransport.Timer deadline = null;
+        NioTransport.Timer hedgeDelay = null;
+        HedgeAttempt hedge = null;
+
+        PendingCommand(String key, String garagePiCommand, boolean interactive, Callback callback) {
+            this.key = key;
+            this.garagePiCommand = garagePiCommand;
+            this.interactive = interactive;
+            this.callbacks.add(callback);
+        }
+
+        boolean isSameCommand(String otherKey, String otherCommand) {
+            return garagePiCommand.equals(otherCommand) && key.equals(otherKey);
+        }
+    }
+
+    /**
+     * The latest latencies of one command, from being requested to its response.
+     */
+    private static class LatencyWindow {
+        private final long[] samplesMs = new long[LatencySamples];
+        private int count = 0;
+        private int next = 0;
+
+        void add(long latencyMs) {
+            samplesMs[next] = latencyMs;
+            next = (next + 1) % samplesMs.length;
+            count = Math.min(count + 1, samplesMs.length);
+        }
+
+        /**
+         * @return The 95th percentile latency, or -1 if there are too few samples to tell.
+         */
+        long getP95Ms() {
+            if(count < MinHedgeSamples) {
+                return -1;
+            }
+            final long[] sorted = Arrays.copyOf(samplesMs, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(count * 0.95) - 1)];
+        }
+    }
+
+    /**
+     * A second copy of a slow idempotent command, sent over its own connection.
+     */
+    private class HedgeAttempt implements NioConnection.Listener {
+        final PendingCommand command;
+        final GaragePiProtocol hedgeProtocol = new GaragePiProtocol(protocol.getServerVersion());
+        final NioConnection hedgeConnection;
+
+        HedgeAttempt(PendingCommand command) {
+            this.command = command;
+            this.hedgeConnection = transport.connect(host, port, sslContext, this);
+        }
+
+        @Override
+        public void onConnected(NioConnection readyConnection) {
+            readyConnection.write(hedgeProtocol.startCommand(command.key, command.garagePiCommand));
+        }
+
+        @Override
+        public void onData(NioConnection dataConnection, ByteBuffer data) {
+            final GaragePiProtocol.Response response;
+            try {
+                response = hedgeProtocol.onCommandData(data);
+            } catch (ProtocolException e) {
+                Log.d(LOG_TAG, "Hedged GaragePi " + command.garagePiCommand + " failed: " + e);
+                dataConnection.close();
+                command.hedge = null;
+                return;
+            }
+            if(response != null) {
+                onHedgeResponse(this, response);
+            }
+        }
+
+        @Override
+        public void onClosed(NioConnection closedConnection, IOException cause) {
+            Log.d(LOG_TAG, "Hedged GaragePi " + command.garagePiCommand + " failed: " + cause);
+            if(command.hedge == this) {
+                command.hedge = null;
+            }
+        }
+    }
+
+    /**
+     * Counters for how connections were obtained. Only modified on the transport thread; volatile
+     * so that they can be described from any thread.
+     */
+    static class Stats {
+        private volatile int connectionsReused = 0;
+        private volatile int fullHandshakes = 0;
+        private volatile int resumedHandshakes = 0;
+        private volatile int staleReconnects = 0;
+        private volatile int prewarms = 0;
+        private volatile int prewarmsUsed = 0;
+        private volatile long prewarmSavedMs = 0;
+        private volatile int coalesced = 0;
+        private volatile int deduplicated = 0;
+        private volatile int timeouts = 0;
+        private volatile int hedges = 0;
+        private volatile int hedgesWon = 0;
+
+        @Override
+        public String toString() {
+            return "reused: " + connectionsReused +
+                    ", full handshakes: " + fullHandshakes +
+                    ", resumed handshakes: " + resumedHandshakes +
+                    ", stale reconnects: " + staleReconnects +
+                    ", pre-warms used: " + prewarmsUsed + "/" + prewarms +
+                    ", pre-warm saved: " + prewarmSavedMs + "ms" +
+                    ", coalesced: " + coalesced +
+                    ", deduplicated: " + deduplicated +
+                    ", network calls saved: " + (coalesced + deduplicated) +
+                    ", timeouts: " + timeouts +
+                    ", hedges won: " + hedgesWon + "/" + hedges;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final long dedupeWindowMs;
+    private final boolean hedgingEnabled;
+    private final NioTransport transport;
+    private final CircuitBreaker circuitBreaker;
+    private final SSLContext sslContext;
+    private final GaragePiProtocol protocol = new GaragePiProtocol();
+    private final Stats stats = new Stats();
+    private final ArrayDeque<PendingCommand> interactiveCommands = new ArrayDeque<>();
+    private final ArrayDeque<PendingCommand> backgroundCommands = new ArrayDeque<>();
+    private final Map<String, PendingCommand> recentNonIdempotentCommands = new HashMap<>();
+    private final Map<String, LatencyWindow> latencies = new HashMap<>();
+
+    private NioConnection connection = null;
+    private NioTransport.Timer negotiationTimeout = null;
+    private long connectStartNs = 0;
+    private long connectionLastUsedNs = 0;
+    private int connectionExchanges = 0;
+    private boolean connectionReady = false;
+    private boolean connectingForPrewarm = false;
+    private boolean serverKeepsConnections = true;
+
+    private PendingCommand inFlight = null;
+    private boolean inFlightReused = false;
+    private boolean inFlightReusedUsed = false;
+
+    private long prewarmIdleBudgetMs = NotPrewarming;
+    private long prewarmSetupMs = NotPrewarming;
+    private NioTransport.Timer prewarmExpiry = null;
+
+    /**
+     * @param dedupeWindowMs How long after a non-idempotent command is requested that an identical
+     * request is treated as a duplicate.
+     * @param hedgingEnabled Whether slow idempotent commands get a second, hedged attempt.
+     * @param circuitBreaker Told whether the server could be reached, once per network attempt.
+     */
+    GaragePiConnectionManager(String host, int port, long dedupeWindowMs, boolean hedgingEnabled,
+                              NioTransport transport, CircuitBreaker circuitBreaker) {
+        this.host = host;
+        this.port = port;
+        this.dedupeWindowMs = dedupeWindowMs;
+        this.hedgingEnabled = hedgingEnabled;
+        this.transport = transport;
+        this.circuitBreaker = circuitBreaker;
+        this.sslContext = createSslContext();
+    }
+
+    private static SSLContext createSslContext() {
+        try {
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+
+            final SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            sessionContext.setSessionCacheSize(SessionCacheSize);
+            sessionContext.setSessionTimeout(SessionTimeoutSeconds);
+            return sslContext;
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            // Still functional, but sessions are then shared with (and evicted by) the rest of the
+            // process.
+            Log.e(LOG_TAG, "Unable to create dedicated SSLContext, using default: " + e);
+            try {
+                return SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException noDefault) {
+                throw new IllegalStateException("No TLS implementation available", noDefault);
+            }
+        }
+    }
+
+    String getStatsDescription() { return stats.toString(); }
+
+    /**
+     * The SSLContext holding the cached TLS sessions, for other connections to the same server.
+     */
+    SSLContext getSslContext() { return sslContext; }
+
+    /**
+     * Queues the command to be sent over the warm connection if one is available, otherwise over a
+     * newly opened connection. An idempotent command that fails on a reused connection is retried
+     * once on a fresh connection. Safe to call from any thread.
+     * @param interactive Interactive commands are sent ahead of any queued background commands.
+     * @param deadlineMs How long the command may take altogether before it fails with a
+     * SocketTimeoutException. A command that joins an identical pending one shares its deadline.
+     */
+    void sendCommand(String key, String garagePiCommand, boolean interactive, long deadlineMs, Callback callback) {
+        transport.post(() -> {
+            if(joinPendingCommand(key, garagePiCommand, callback)) {
+                return;
+            }
+
+            final PendingCommand command = new PendingCommand(key, garagePiCommand, interactive, callback);
+            command.deadline = transport.schedule(() -> onDeadlineExpired(command, deadlineMs), deadlineMs);
+            if(!isIdempotent(garagePiCommand)) {
+                recentNonIdempotentCommands.put(garagePiCommand, command);
+            } else if (hedgingEnabled) {
+                scheduleHedge(command, deadlineMs);
+            }
+            (interactive ? interactiveCommands : backgroundCommands).add(command);
+            dispatch();
+        });
+    }
+
+    private void scheduleHedge(PendingCommand command, long deadlineMs) {
+        final LatencyWindow latency = latencies.get(command.garagePiCommand);
+        final long p95Ms = latency != null ? latency.getP95Ms() : -1;
+        if(p95Ms < 0) {
+            return;
+        }
+
+        final long hedgeDelayMs = Math.max(p95Ms, MinHedgeDelayMs);
+        if(hedgeDelayMs < deadlineMs) {
+            command.hedgeDelay = transport.schedule(() -> startHedge(command), hedgeDelayMs);
+        }
+    }
+
+    private void startHedge(PendingCommand command) {
+        command.hedgeDelay = null;
+        if(command.response != null || command.callbacks.isEmpty() ||
+                protocol.getServerVersion() == GaragePiProtocol.VersionUnknown) {
+            return;
+        }
+
+        stats.hedges++;
+        Log.i(LOG_TAG, "GaragePi " + command.garagePiCommand + " is slower than its p95, sending hedged attempt");
+        command.hedge = new HedgeAttempt(command);
+    }
+
+    private void onHedgeResponse(HedgeAttempt hedge, GaragePiProtocol.Response response) {
+        final PendingCommand command = hedge.command;
+        circuitBreaker.onSuccess();
+        stats.hedgesWon++;
+        Log.i(LOG_TAG, "Hedged GaragePi " + command.garagePiCommand + " answered first");
+
+        // The original attempt is evidently stuck, so its connection isn't worth keeping.
+        if(inFlight == command) {
+            inFlight = null;
+            closeConnection();
+        } else {
+            interactiveCommands.remove(command);
+            backgroundCommands.remove(command);
+        }
+        completeCommand(command, response);
+        dispatch();
+    }
+
+    private void onDeadlineExpired(PendingCommand command, long deadlineMs) {
+        command.deadline = null;
+        if(command.response != null || command.callbacks.isEmpty()) {
+            return;
+        }
+
+        stats.timeouts++;
+        final SocketTimeoutException timeout = new SocketTimeoutException(
+                "GaragePi " + command.garagePiCommand + " took longer than " + deadlineMs + "ms");
+        Log.w(LOG_TAG, timeout.getMessage());
+        if(inFlight == command) {
+            // Whatever the connection is stuck on, the response can no longer be told apart from
+            // the next one, so the connection is dropped instead of retried.
+            command.retried = true;
+            closeConnection();
+            onConnectionLost(timeout);
+            return;
+        }
+
+        interactiveCommands.remove(command);
+        backgroundCommands.remove(command);
+        failCommand(command, timeout);
+    }
+
+    /**
+     * Stops the command's deadline and any hedged attempt, once it has an outcome.
+     */
+    private void finishCommand(PendingCommand command) {
+        if(command.deadline != null) {
+            command.deadline.cancel();
+            command.deadline = null;
+        }
+        if(command.hedgeDelay != null) {
+            command.hedgeDelay.cancel();
+            command.hedgeDelay = null;
+        }
+        if(command.hedge != null) {
+            command.hedge.hedgeConnection.close();
+            command.hedge = null;
+        }
+    }
+
+    private void completeCommand(PendingCommand command, GaragePiProtocol.Response response) {
+        finishCommand(command);
+
+        LatencyWindow latency = latencies.get(command.garagePiCommand);
+        if(latency == null) {
+            latency = new LatencyWindow();
+            latencies.put(command.garagePiCommand, latency);
+        }
+        latency.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - command.submittedNs));
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseGaragePiTotal, command.submittedNs);
+
+        command.response = response;
+        for(Callback callback : command.callbacks) {
+            callback.onResponse(response);
+        }
+        command.callbacks.clear();
+    }
+
+    private static boolean isIdempotent(String garagePiCommand) {
+        switch (garagePiCommand) {
+            case Constants.GaragePiCmdStatus:
+            case Constants.GaragePiCmdLoud:
+            case Constants.GaragePiCmdQuiet:
+            case Constants.GaragePiCmdEnable:
+            case Constants.GaragePiCmdDisable:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Attaches the callback to an identical command that is already pending, or for non-idempotent
+     * commands, was requested within the dedupe window.
+     * @return True if the callback joined another command and nothing needs to be sent.
+     */
+    private boolean joinPendingCommand(String key, String garagePiCommand, Callback callback) {
+        if(isIdempotent(garagePiCommand)) {
+            final PendingCommand pending = (inFlight != null && inFlight.isSameCommand(key, garagePiCommand))
+                    ? inFlight
+                    : findQueuedCommand(key, garagePiCommand);
+            if(pending == null) {
+                return false;
+            }
+
+            stats.coalesced++;
+            Log.d(LOG_TAG, "Coalesced GaragePi " + garagePiCommand + " with pending request");
+            joinCommand(pending, callback);
+            return true;
+        }
+
+        final PendingCommand recent = recentNonIdempotentCommands.get(garagePiCommand);
+        if(recent == null || !recent.isSameCommand(key, garagePiCommand) ||
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recent.submittedNs) > dedupeWindowMs) {
+            return false;
+        }
+        if(recent.callbacks.isEmpty() && recent.response == null) {
+            // It failed, so repeating it is not a duplicate.
+            return false;
+        }
+
+        stats.deduplicated++;
+        Log.i(LOG_TAG, "Deduplicated GaragePi " + garagePiCommand + " repeated within " + dedupeWindowMs + "ms");
+        joinCommand(recent, callback);
+        return true;
+    }
+
+    private PendingCommand findQueuedCommand(String key, String garagePiCommand) {
+        for(PendingCommand command : interactiveCommands) {
+            if(command.isSameCommand(key, garagePiCommand)) {
+                return command;
+            }
+        }
+        for(PendingCommand command : backgroundCommands) {
+            if(command.isSameCommand(key, garagePiCommand)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void joinCommand(PendingCommand command, Callback callback) {
+        if(command.sent) {
+            callback.onSent();
+        }
+        if(command.response != null) {
+            callback.onResponse(command.response);
+            return;
+        }
+        command.callbacks.add(callback);
+    }
+
+    /**
+     * Opens a connection ahead of any command, if one isn't already open, and keeps it open until
+     * it has been idle for longer than idleBudgetMs or endPrewarm is called. Calling this again
+     * while pre-warmed only replaces the idle budget. Safe to call from any thread.
+     */
+    void prewarm(long idleBudgetMs) {
+        transport.post(() -> {
+            prewarmIdleBudgetMs = idleBudgetMs;
+            if(prewarmExpiry != null) {
+                prewarmExpiry.cancel();
+            }
+            prewarmExpiry = transport.schedule(this::expirePrewarmIfIdle, idleBudgetMs);
+
+            if(connection == null) {
+                openConnection(true);
+            }
+        });
+    }
+
+    /**
+     * Ends pre-warm mode and closes the warm connection unless a command is using it. The TLS
+     * session stays cached for later resumption. Safe to call from any thread.
+     */
+    void endPrewarm() {
+        transport.post(this::endPrewarmNow);
+    }
+
+    private void endPrewarmNow() {
+        prewarmIdleBudgetMs = NotPrewarming;
+        prewarmSetupMs = NotPrewarming;
+        if(prewarmExpiry != null) {
+            prewarmExpiry.cancel();
+            prewarmExpiry = null;
+        }
+        if(inFlight == null && interactiveCommands.isEmpty() && backgroundCommands.isEmpty()) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Ends pre-warm mode if the warm connection has used up its idle budget, otherwise checks
+     * again once it would have.
+     */
+    private void expirePrewarmIfIdle() {
+        prewarmExpiry = null;
+        if(prewarmIdleBudgetMs == NotPrewarming) {
+            return;
+        }
+
+        final long remainingMs = inFlight != null ? prewarmIdleBudgetMs : prewarmIdleBudgetMs - getConnectionIdleMs();
+        if(connection == null || remainingMs <= 0) {
+            Log.d(LOG_TAG, "GaragePi pre-warm idle budget ran out");
+            endPrewarmNow();
+            return;
+        }
+        prewarmExpiry = transport.schedule(this::expirePrewarmIfIdle, remainingMs);
+    }
+
+    private long getConnectionIdleMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectionLastUsedNs);
+    }
+
+    private PendingCommand pollNextCommand() {
+        final PendingCommand command = interactiveCommands.poll();
+        return command != null ? command : backgroundCommands.poll();
+    }
+
+    private boolean hasQueuedCommands() {
+        return !interactiveCommands.isEmpty() || !backgroundCommands.isEmpty();
+    }
+
+    private void dispatch() {
+        if(inFlight != null || !hasQueuedCommands()) {
+            return;
+        }
+
+        if(connection != null && connectionReady) {
+            if(takeReusableConnection()) {
+                startCommand(pollNextCommand(), true);
+                return;
+            }
+            closeConnection();
+        }
+        if(connection == null) {
+            openConnection(false);
+        }
+        // Otherwise a connection is already being set up, and commands go out once it's ready.
+    }
+
+    private boolean takeReusableConnection() {
+        // Connections that have not carried a request yet are still usable even if the server
+        // closes connections after responding.
+        final boolean closedByServer = !serverKeepsConnections && connectionExchanges > 0;
+        final long maxIdleMs = Math.max(MaxIdleReuseMs, prewarmIdleBudgetMs);
+        if(closedByServer || !connection.isOpen() || getConnectionIdleMs() > maxIdleMs) {
+            return false;
+        }
+
+        stats.connectionsReused++;
+        if(connectionExchanges == 0 && prewarmSetupMs != NotPrewarming) {
+            stats.prewarmsUsed++;
+            stats.prewarmSavedMs += prewarmSetupMs;
+            Log.i(LOG_TAG, "GaragePi command using pre-warmed connection, saved ~" + prewarmSetupMs + "ms of setup");
+            prewarmSetupMs = NotPrewarming;
+        }
+        return true;
+    }
+
+    private void startCommand(PendingCommand command, boolean reusing) {
+        inFlight = command;
+        inFlightReused = reusing;
+        inFlightReusedUsed = reusing && connectionExchanges > 0;
+        command.sentNs = System.nanoTime();
+        connection.write(protocol.startCommand(command.key, command.garagePiCommand));
+        if(inFlight == command && !command.sent) {
+            command.sent = true;
+            for(Callback callback : command.callbacks) {
+                callback.onSent();
+            }
+        }
+    }
+
+    private void openConnection(boolean forPrewarm) {
+        Log.d(LOG_TAG, "Opening new GaragePi connection");
+        connectStartNs = System.nanoTime();
+        connectingForPrewarm = forPrewarm;
+        connectionReady = false;
+        prewarmSetupMs = NotPrewarming;
+        connection = transport.connect(host, port, sslContext, this);
+    }
+
+    private void closeConnection() {
+        if(negotiationTimeout != null) {
+            negotiationTimeout.cancel();
+            negotiationTimeout = null;
+        }
+        if(connection != null) {
+            connection.close();
+            connection = null;
+        }
+        connectionReady = false;
+    }
+
+    @Override
+    public void onConnected(NioConnection readyConnection) {
+        if(readyConnection != connection) {
+            return;
+        }
+
+        if(readyConnection.wasSessionResumed()) {
+            stats.resumedHandshakes++;
+        } else {
+            stats.fullHandshakes++;
+        }
+        Log.d(LOG_TAG, "GaragePi connection ready - " + stats);
+
+        if(protocol.shouldNegotiate()) {
+            negotiationTimeout = transport.schedule(
+                    () -> onNegotiationFailed(new SocketTimeoutException("GaragePi HELLO timed out")),
+                    GaragePiProtocol.NegotiationTimeoutMs);
+            readyConnection.write(protocol.startNegotiation());
+            return;
+        }
+        onConnectionReady();
+    }
+
+    private void onNegotiated(int serverVersion) {
+        negotiationTimeout.cancel();
+        negotiationTimeout = null;
+        if(serverVersion == GaragePiFrame.Version) {
+            onConnectionReady();
+            return;
+        }
+
+        // A text-only server has consumed this connection while rejecting the HELLO. v2 servers
+        // recognize framed requests by their magic, so only the first connection negotiates.
+        final boolean forPrewarm = connectingForPrewarm;
+        closeConnection();
+        openConnection(forPrewarm);
+    }
+
+    private void onNegotiationFailed(IOException cause) {
+        protocol.onNegotiationFailed(cause);
+        final boolean forPrewarm = connectingForPrewarm;
+        closeConnection();
+        openConnection(forPrewarm);
+    }
+
+    private void onConnectionReady() {
+        circuitBreaker.onSuccess();
+        connectionReady = true;
+        connectionLastUsedNs = System.nanoTime();
+        connectionExchanges = 0;
+        if(connectingForPrewarm) {
+            stats.prewarms++;
+            prewarmSetupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStartNs);
+            Log.i(LOG_TAG, "Pre-warmed GaragePi connection in " + prewarmSetupMs + "ms");
+        }
+        dispatch();
+    }
+
+    @Override
+    public void onData(NioConnection dataConnection, ByteBuffer data) {
+        if(dataConnection != connection) {
+            return;
+        }
+
+        if(negotiationTimeout != null) {
+            final int serverVersion = protocol.onNegotiationData(data);
+            if(serverVersion != GaragePiProtocol.VersionUnknown) {
+                onNegotiated(serverVersion);
+            }
+            return;
+        }
+
+        if(inFlight == null) {
+            Log.w(LOG_TAG, "Ignoring " + data.remaining() + " unexpected bytes from GaragePi server");
+            return;
+        }
+
+        final GaragePiProtocol.Response response;
+        try {
+            response = protocol.onCommandData(data);
+        } catch (ProtocolException e) {
+            // The server answered, so it may well have run the command; resending it could run it
+            // twice. The connection is dropped as the rest of the stream can't be trusted.
+            Log.w(LOG_TAG, "Malformed response to GaragePi " + inFlight.garagePiCommand + ": " + e);
+            circuitBreaker.onSuccess();
+            final PendingCommand failed = inFlight;
+            inFlight = null;
+            transport.getLatencies().recordSince(PhaseLatencies.PhaseGaragePiResponse, failed.sentNs);
+            closeConnection();
+            failCommand(failed, e);
+            dispatch();
+            return;
+        }
+        if(response == null) {
+            return;
+        }
+
+        final PendingCommand completed = inFlight;
+        inFlight = null;
+        circuitBreaker.onSuccess();
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseGaragePiResponse, completed.sentNs);
+        connectionLastUsedNs = System.nanoTime();
+        connectionExchanges++;
+        if(!serverKeepsConnections) {
+            closeConnection();
+        }
+        completeCommand(completed, response);
+        dispatch();
+    }
+
+    @Override
+    public void onClosed(NioConnection closedConnection, IOException cause) {
+        if(closedConnection != connection) {
+            return;
+        }
+        connection = null;
+
+        if(negotiationTimeout != null) {
+            if(cause instanceof EOFException) {
+                // Older servers close the connection on an unrecognized request.
+                onNegotiationFailed(cause);
+                return;
+            }
+            negotiationTimeout.cancel();
+            negotiationTimeout = null;
+        }
+        onConnectionLost(cause);
+    }
+
+    private void onConnectionLost(IOException cause) {
+        final boolean wasReady = connectionReady;
+        connectionReady = false;
+
+        final PendingCommand failed = inFlight;
+        inFlight = null;
+        if(failed == null) {
+            if(!wasReady) {
+                // The connection could not be set up; every waiting command would fail the same way.
+                Log.i(LOG_TAG, "GaragePi connection failed: " + cause);
+                circuitBreaker.onFailure();
+                failQueuedCommands(cause);
+            }
+            return;
+        }
+
+        if(inFlightReused && !failed.retried) {
+            stats.staleReconnects++;
+            if(inFlightReusedUsed && cause instanceof EOFException) {
+                // The server quietly closed a connection after already responding on it. If this
+                // happens, there's no point in keeping used connections open at all.
+                serverKeepsConnections = false;
+            }
+
+            if(isIdempotent(failed.garagePiCommand)) {
+                Log.i(LOG_TAG, "Reused GaragePi connection was stale, reconnecting: " + cause);
+                failed.retried = true;
+                // Back to the front of its own queue, so a background poll doesn't get ahead of
+                // interactive commands already waiting.
+                (failed.interactive ? interactiveCommands : backgroundCommands).addFirst(failed);
+                dispatch();
+                return;
+            }
+            // The server may have received it before the connection failed, so sending it again
+            // could e.g. move the door twice.
+            Log.i(LOG_TAG, "Reused GaragePi connection was stale, not resending " + failed.garagePiCommand + ": " + cause);
+        } else {
+            circuitBreaker.onFailure();
+        }
+
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseGaragePiResponse, failed.sentNs);
+        failCommand(failed, cause);
+        dispatch();
+    }
+
+    private void failQueuedCommands(IOException cause) {
+        PendingCommand command;
+        while((command = pollNextCommand()) != null) {
+            failCommand(command, cause);
+        }
+    }
+
+    private void failCommand(PendingCommand command, IOException cause) {
+        finishCommand(command);
+        // Failures are mostly timeouts, the slowest commands of all, so they belong in the tail.
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseGaragePiTotal, command.submittedNs);
+        for(Callback callback : command.callbacks) {
+            callback.onFailure(cause);
+        }
+        command.callbacks.clear();
+    }
+}
@@ -0,0 +1,211 @@
+package dlzp.arfuga.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * A single request or response frame of the GaragePi v2 protocol. All values are big-endian:
+ *
+ *   magic u16 ('G' 'P') | version u8 | opcode u8 | status u8 | flags u8 | payload length u32
+ *
+ * The payload is a sequence of typed fields, each laid out as:
+ *
+ *   tag u8 | type u8 | value length u16 | value
+ *
+ * A response may be streamed over several frames; every frame but the last has FlagMore set.
+ */
+final class GaragePiFrame {
+    static final int Magic = 0x4750;
+    static final int Version = 2;
+    static final int HeaderSize = 10;
+    static final int MaxPayloadSize = 64 * 1024;
+
+    static final int FlagMore = 0x01;
+
+    static final int OpHello = 0x01;
+    static final int OpCommand = 0x02; // Commands without their own opcode, carried by name.
+    static final int OpToggle = 0x10;
+    static final int OpTimed = 0x11;
+    static final int OpStatus = 0x12;
+    static final int OpClose = 0x13;
+    static final int OpOpen = 0x14;
+    static final int OpDisable = 0x15;
+    static final int OpEnable = 0x16;
+    static final int OpDisenable = 0x17;
+    static final int OpLoud = 0x18;
+    static final int OpQuiet = 0x19;
+    static final int OpSubscribe = 0x20; // Asks the server to push door state changes.
+    static final int OpDoorEvent = 0x21; // Pushed by the server, never requested.
+
+    static final int StatusOk = 0;
+    static final int StatusBadKey = 1;
+    static final int StatusUnknownOpcode = 2;
+    static final int StatusServerError = 3;
+    static final int StatusUnsupportedVersion = 4;
+
+    static final int FieldKey = 1;
+    static final int FieldCommand = 2;
+    static final int FieldMessage = 3;
+    static final int FieldDoorState = 4;
+    static final int FieldEnabled = 5;
+    static final int FieldLoud = 6;
+    static final int FieldTimestamp = 7;
+    static final int FieldVersion = 8;
+
+    static final int TypeBool = 1;
+    static final int TypeInt64 = 2;
+    static final int TypeString = 3;
+
+    static final class Field {
+        final int tag;
+        final int type;
+        final long longValue;
+        final String stringValue;
+
+        Field(int tag, long longValue, boolean isBool) {
+            this.tag = tag;
+            this.type = isBool ? TypeBool : TypeInt64;
+            this.longValue = longValue;
+            this.stringValue = null;
+        }
+
+        Field(int tag, String stringValue) {
+            this.tag = tag;
+            this.type = TypeString;
+            this.longValue = 0;
+            this.stringValue = stringValue;
+        }
+    }
+
+    final int opcode;
+    final int status;
+    final int flags;
+    private final List<Field> fields = new ArrayList<>();
+
+    GaragePiFrame(int opcode) {
+        this(opcode, StatusOk, 0);
+    }
+
+    GaragePiFrame(int opcode, int status, int flags) {
+        this.opcode = opcode;
+        this.status = status;
+        this.flags = flags;
+    }
+
+    GaragePiFrame putString(int tag, String value) {
+        fields.add(new Field(tag, value));
+        return this;
+    }
+
+    GaragePiFrame putLong(int tag, long value) {
+        fields.add(new Field(tag, value, false));
+        return this;
+    }
+
+    GaragePiFrame putBoolean(int tag, boolean value) {
+        fields.add(new Field(tag, value ? 1 : 0, true));
+        return this;
+    }
+
+    void addFieldsFrom(GaragePiFrame other) {
+        fields.addAll(other.fields);
+    }
+
+    List<Field> getFields() { return fields; }
+
+    Field getField(int tag) {
+        for(Field field : fields) {
+            if(field.tag == tag) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    String getString(int tag, String defaultValue) {
+        final Field field = getField(tag);
+        return (field == null || field.type != TypeString) ? defaultValue : field.stringValue;
+    }
+
+    long getLong(int tag, long defaultValue) {
+        final Field field = getField(tag);
+        return (field == null || field.type == TypeString) ? defaultValue : field.longValue;
+    }
+
+    boolean hasMore() { return (flags & FlagMore) != 0; }
+
+    byte[] encode() {
+        int payloadSize = 0;
+        final List<byte[]> encodedStrings = new ArrayList<>();
+        for(Field field : fields) {
+            payloadSize += 4;
+            if(field.type == TypeString) {
+                final byte[] bytes = field.stringValue.getBytes(StandardCharsets.UTF_8);
+                if(bytes.length > 0xFFFF) {
+                    throw new IllegalArgumentException("GaragePi string field " + field.tag + " is too long");
+                }
+                encodedStrings.add(bytes);
+                payloadSize += bytes.length;
+            } else {
+                payloadSize += (field.type == TypeBool) ? 1 : 8;
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HeaderSize + payloadSize);
+        buffer.putShort((short) Magic);
+        buffer.put((byte) Version);
+        buffer.put((byte) opcode);
+        buffer.put((byte) status);
+        buffer.put((byte) flags);
+        buffer.putInt(payloadSize);
+
+        int stringIndex = 0;
+        for(Field field : fields) {
+            buffer.put((byte) field.tag);
+            buffer.put((byte) field.type);
+            if(field.type == TypeString) {
+                final byte[] bytes = encodedStrings.get(stringIndex++);
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+            } else if (field.type == TypeBool) {
+                buffer.putShort((short) 1);
+                buffer.put((byte) field.longValue);
+            } else {
+                buffer.putShort((short) 8);
+                buffer.putLong(field.longValue);
+            }
+        }
+        return buffer.array();
+    }
+
+    static int opcodeForCommand(String garagePiCommand) {
+        switch (garagePiCommand) {
+            case Constants.GaragePiCmdToggle: return OpToggle;
+            case Constants.GaragePiCmdTimed: return OpTimed;
+            case Constants.GaragePiCmdStatus: return OpStatus;
+            case Constants.GaragePiCmdClose: return OpClose;
+            case Constants.GaragePiCmdOpen: return OpOpen;
+            case Constants.GaragePiCmdDisable: return OpDisable;
+            case Constants.GaragePiCmdEnable: return OpEnable;
+            case Constants.GaragePiCmdDisenable: return OpDisenable;
+            case Constants.GaragePiCmdLoud: return OpLoud;
+            case Constants.GaragePiCmdQuiet: return OpQuiet;
+            default: return OpCommand;
+        }
+    }
+
+    static String describeStatus(int status) {
+        switch (status) {
+            case StatusOk: return "ok";
+            case StatusBadKey: return "bad key";
+            case StatusUnknownOpcode: return "unknown command";
+            case StatusServerError: return "server error";
+            case StatusUnsupportedVersion: return "unsupported version";
+            default: return "status " + status;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package dlzp.arfuga.data;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incrementally decodes GaragePiFrames out of a byte stream. Bytes may arrive in arbitrary pieces;
+ * complete frames are handed out as soon as all of their bytes have been fed. The same buffer is
+ * reused for every frame decoded, only growing when a frame larger than any previous one arrives.
+ */
+final class GaragePiFrameDecoder {
+    private static final int InitialCapacity = 1024;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(InitialCapacity);
+
+    void reset() {
+        buffer.clear();
+    }
+
+    void feed(byte[] source, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(source, offset, length);
+    }
+
+    void feed(ByteBuffer source) {
+        ensureRemaining(source.remaining());
+        buffer.put(source);
+    }
+
+    /**
+     * @return The next complete frame, or null if more bytes are needed first.
+     * @throws ProtocolException If the bytes received are not a valid v2 frame.
+     */
+    GaragePiFrame poll() throws ProtocolException {
+        checkMagic();
+        final int available = buffer.position();
+        if(available < GaragePiFrame.HeaderSize) {
+            return null;
+        }
+
+        final int payloadSize = buffer.getInt(6);
+        if(payloadSize < 0 || payloadSize > GaragePiFrame.MaxPayloadSize) {
+            throw new ProtocolException("GaragePi frame payload size out of range: " + payloadSize);
+        }
+
+        final int frameSize = GaragePiFrame.HeaderSize + payloadSize;
+        if(available < frameSize) {
+            return null;
+        }
+
+        final GaragePiFrame frame = new GaragePiFrame(
+                buffer.get(3) & 0xFF,
+                buffer.get(4) & 0xFF,
+                buffer.get(5) & 0xFF);
+        int position = GaragePiFrame.HeaderSize;
+        while(position < frameSize) {
+            position = decodeField(frame, position, frameSize);
+        }
+
+        // Drop this frame's bytes, keeping any that already belong to the next frame(s).
+        buffer.flip();
+        buffer.position(frameSize);
+        buffer.compact();
+        return frame;
+    }
+
+    private void checkMagic() throws ProtocolException {
+        final int available = buffer.position();
+        if(available >= 1 && (buffer.get(0) & 0xFF) != (GaragePiFrame.Magic >> 8)) {
+            throw new ProtocolException("Not a GaragePi v2 frame");
+        }
+        if(available >= 2 && (buffer.get(1) & 0xFF) != (GaragePiFrame.Magic & 0xFF)) {
+            throw new ProtocolException("Not a GaragePi v2 frame");
+        }
+        if(available >= 3 && (buffer.get(2) & 0xFF) != GaragePiFrame.Version) {
+            throw new ProtocolException("Unsupported GaragePi frame version: " + (buffer.get(2) & 0xFF));
+        }
+    }
+
+    /**
+     * Decodes the field starting at the given absolute position.
+     * @return The position just after the decoded field.
+     */
+    private int decodeField(GaragePiFrame frame, int position, int frameSize) throws ProtocolException {
+        if(frameSize - position < 4) {
+            throw new ProtocolException("Truncated GaragePi frame field header");
+        }
+        final int tag = buffer.get(position) & 0xFF;
+        final int type = buffer.get(position + 1) & 0xFF;
+        final int length = buffer.getShort(position + 2) & 0xFFFF;
+        final int valuePosition = position + 4;
+        if(frameSize - valuePosition < length) {
+            throw new ProtocolException("Truncated GaragePi frame field " + tag);
+        }
+
+        switch (type) {
+            case GaragePiFrame.TypeBool:
+                frame.putBoolean(tag, length > 0 && buffer.get(valuePosition) != 0);
+                break;
+            case GaragePiFrame.TypeInt64:
+                if(length != 8) {
+                    throw new ProtocolException("GaragePi int64 field " + tag + " has length " + length);
+                }
+                frame.putLong(tag, buffer.getLong(valuePosition));
+                break;
+            case GaragePiFrame.TypeString:
+                frame.putString(tag, new String(buffer.array(), valuePosition, length, StandardCharsets.UTF_8));
+                break;
+            default:
+                // Unknown types from newer servers are skipped rather than rejected.
+                break;
+        }
+        return valuePosition + length;
+    }
+
+    private void ensureRemaining(int length) {
+        if(buffer.remaining() >= length) {
+            return;
+        }
+
+        // Growth is bounded in practice: poll() rejects oversized frames as soon as their header
+        // has been fed.
+        final int required = buffer.position() + length;
+        int newCapacity = buffer.capacity();
+        while(newCapacity < required) {
+            newCapacity *= 2;
+        }
+        final ByteBuffer grown = ByteBuffer.allocate(newCapacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
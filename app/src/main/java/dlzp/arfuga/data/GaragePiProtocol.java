@@ -0,0 +1,234 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * Encodes GaragePi requests and decodes their responses. Newer servers understand the
+ * length-framed v2 protocol (see GaragePiFrame); older servers only understand the original
+ * tab-separated "key\tcommand" text protocol. Which one the server speaks is negotiated with a v2
+ * HELLO on the first connection and remembered afterwards.
+ *
+ * Responses may arrive in any number of pieces, which are fed in as they are received. Only used
+ * on the transport thread, one exchange at a time, which keeps the reusable decoder buffers safe
+ * to share between commands.
+ */
+class GaragePiProtocol {
+    private static final String LOG_TAG = "GaragePiProtocol";
+    private static final int TextResponseReadSize = 10240;
+
+    static final long NegotiationTimeoutMs = 5000;
+    static final int VersionUnknown = 0;
+    static final int VersionText = 1;
+
+    static class Response {
+        final boolean isSuccess;
+        final String description;
+        final String doorState; // Empty if the response didn't report the door state.
+        final int enabled; // GaragePiStatus flag
+        final int loud; // GaragePiStatus flag
+        final long serverTimestampMs; // 0 if the response didn't carry one.
+
+        Response(boolean isSuccess, String description, String doorState) {
+            this(isSuccess, description, doorState, GaragePiStatus.FlagUnknown, GaragePiStatus.FlagUnknown, 0);
+        }
+
+        Response(boolean isSuccess, String description, String doorState, int enabled, int loud,
+                 long serverTimestampMs) {
+            this.isSuccess = isSuccess;
+            this.description = description;
+            this.doorState = doorState;
+            this.enabled = enabled;
+            this.loud = loud;
+            this.serverTimestampMs = serverTimestampMs;
+        }
+    }
+
+    private final GaragePiFrameDecoder decoder = new GaragePiFrameDecoder();
+    private final byte[] textResponseBytes = new byte[TextResponseReadSize];
+    private GaragePiFrame framedResponse = null;
+    private String pendingCommand = null;
+
+    private int serverVersion;
+
+    GaragePiProtocol() {
+        this(VersionUnknown);
+    }
+
+    /**
+     * @param serverVersion The version already negotiated by another connection to the server.
+     */
+    GaragePiProtocol(int serverVersion) {
+        this.serverVersion = serverVersion;
+    }
+
+    int getServerVersion() { return serverVersion; }
+
+    boolean shouldNegotiate() { return serverVersion == VersionUnknown; }
+
+    /**
+     * @return The v2 HELLO to send over a freshly connected socket. Older servers reply with text,
+     * an error or by closing the connection.
+     */
+    byte[] startNegotiation() {
+        decoder.reset();
+        return new GaragePiFrame(GaragePiFrame.OpHello)
+                .putLong(GaragePiFrame.FieldVersion, GaragePiFrame.Version)
+                .encode();
+    }
+
+    /**
+     * Feeds bytes of the server's reply to the HELLO.
+     * @return VersionUnknown while the reply is incomplete, otherwise the server's version. A
+     * connection to a text-only server was consumed by rejecting the HELLO and must be replaced
+     * before sending any command.
+     */
+    int onNegotiationData(ByteBuffer data) {
+        final GaragePiFrame reply;
+        try {
+            decoder.feed(data);
+            reply = decoder.poll();
+        } catch (ProtocolException e) {
+            onNegotiationFailed(e);
+            return serverVersion;
+        }
+        if(reply == null) {
+            return VersionUnknown;
+        }
+
+        if(reply.opcode == GaragePiFrame.OpHello && reply.status == GaragePiFrame.StatusOk &&
+                reply.getLong(GaragePiFrame.FieldVersion, VersionText) >= GaragePiFrame.Version) {
+            if(serverVersion != GaragePiFrame.Version) {
+                Log.i(LOG_TAG, "GaragePi server speaks protocol v2");
+            }
+            serverVersion = GaragePiFrame.Version;
+            return serverVersion;
+        }
+
+        Log.i(LOG_TAG, "GaragePi server declined protocol v2: " + GaragePiFrame.describeStatus(reply.status));
+        serverVersion = VersionText;
+        return serverVersion;
+    }
+
+    /**
+     * The server closed the connection, replied with garbage or didn't reply in time.
+     */
+    void onNegotiationFailed(IOException cause) {
+        Log.i(LOG_TAG, "GaragePi server does not speak protocol v2, falling back to text: " + cause);
+        serverVersion = VersionText;
+    }
+
+    /**
+     * @return The request to send for the command.
+     */
+    byte[] startCommand(String key, String garagePiCommand) {
+        decoder.reset();
+        framedResponse = null;
+        pendingCommand = garagePiCommand;
+        if(serverVersion != GaragePiFrame.Version) {
+            return (key + "\t" + garagePiCommand).getBytes();
+        }
+
+        final int opcode = GaragePiFrame.opcodeForCommand(garagePiCommand);
+        final GaragePiFrame request = new GaragePiFrame(opcode)
+                .putString(GaragePiFrame.FieldKey, key);
+        if(opcode == GaragePiFrame.OpCommand) {
+            request.putString(GaragePiFrame.FieldCommand, garagePiCommand);
+        }
+        return request.encode();
+    }
+
+    /**
+     * Feeds bytes of the response to the command started last.
+     * @return The complete response, or null if more bytes are needed.
+     */
+    Response onCommandData(ByteBuffer data) throws ProtocolException {
+        if(serverVersion != GaragePiFrame.Version) {
+            // Text responses have no framing; whatever arrives first is the response.
+            final int length = Math.min(data.remaining(), TextResponseReadSize);
+            if(data.remaining() >= TextResponseReadSize) {
+                Log.w(LOG_TAG, "More data to read? Bytes read matched max read size!");
+            }
+            data.get(textResponseBytes, 0, length);
+            final String response = new String(textResponseBytes, 0, length);
+
+            // Text status responses lead with the door state.
+            final String doorState = pendingCommand.equals(Constants.GaragePiCmdStatus)
+                    ? response.split("\t", 2)[0].trim()
+                    : "";
+            return new Response(true, response.replace("\t", " - "), doorState);
+        }
+
+        // Streamed responses arrive as several frames; gather all of their fields.
+        decoder.feed(data);
+        GaragePiFrame frame;
+        while((frame = decoder.poll()) != null) {
+            if(framedResponse == null) {
+                framedResponse = new GaragePiFrame(frame.opcode, frame.status, 0);
+            }
+            framedResponse.addFieldsFrom(frame);
+            if(!frame.hasMore()) {
+                return toResponse(framedResponse);
+            }
+        }
+        return null;
+    }
+
+    private static Response toResponse(GaragePiFrame response) {
+        if(response.status != GaragePiFrame.StatusOk) {
+            final String message = response.getString(GaragePiFrame.FieldMessage, "");
+            return new Response(false, GaragePiFrame.describeStatus(response.status) +
+                    (message.isEmpty() ? "" : " - " + message), "");
+        }
+        return new Response(true, describeFields(response),
+                response.getString(GaragePiFrame.FieldDoorState, ""),
+                toFlag(response.getField(GaragePiFrame.FieldEnabled)),
+                toFlag(response.getField(GaragePiFrame.FieldLoud)),
+                response.getLong(GaragePiFrame.FieldTimestamp, 0));
+    }
+
+    private static int toFlag(GaragePiFrame.Field field) {
+        if(field == null || field.type == GaragePiFrame.TypeString) {
+            return GaragePiStatus.FlagUnknown;
+        }
+        return field.longValue != 0 ? GaragePiStatus.FlagOn : GaragePiStatus.FlagOff;
+    }
+
+    /**
+     * Renders the response fields the same way text responses are displayed.
+     */
+    private static String describeFields(GaragePiFrame response) {
+        final StringBuilder description = new StringBuilder();
+        for(GaragePiFrame.Field field : response.getFields()) {
+            final String value;
+            switch (field.tag) {
+                case GaragePiFrame.FieldEnabled:
+                    value = field.longValue != 0 ? "enabled" : "disabled";
+                    break;
+                case GaragePiFrame.FieldLoud:
+                    value = field.longValue != 0 ? "loud" : "quiet";
+                    break;
+                case GaragePiFrame.FieldMessage:
+                case GaragePiFrame.FieldDoorState:
+                    value = field.stringValue;
+                    break;
+                default:
+                    continue;
+            }
+
+            if(value == null || value.isEmpty()) {
+                continue;
+            }
+            if(description.length() > 0) {
+                description.append(" - ");
+            }
+            description.append(value);
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package dlzp.arfuga.data;
+
+import androidx.annotation.NonNull;
+
+import java.util.Objects;
+
+/**
+ * An immutable snapshot of everything known about GaragePi: what the latest command is doing, the
+ * door state and settings last reported by the server, and why the latest command failed, if it
+ * did. Built on the network thread and published by DLZPServerClient as a whole, so observers can
+ * react to individual fields instead of parsing the displayed text.
+ *
+ * Each update derives a new status from the previous one, so the door state and settings stay
+ * known while later commands are in progress.
+ */
+public final class GaragePiStatus {
+    public static final int ActivityIdle = 0;
+    public static final int ActivityConnecting = 1;
+    public static final int ActivitySent = 2;
+    public static final int ActivityDone = 3;
+
+    public static final int FlagUnknown = 0;
+    public static final int FlagOff = 1;
+    public static final int FlagOn = 2;
+
+    public static final int ErrorNone = 0;
+    public static final int ErrorLocallyDisabled = 1;
+    public static final int ErrorRejected = 2;
+    public static final int ErrorEmptyResponse = 3;
+    public static final int ErrorTimeout = 4;
+    public static final int ErrorTls = 5;
+    public static final int ErrorUnknownHost = 6;
+    public static final int ErrorNetwork = 7;
+    public static final int ErrorBusy = 8;
+    public static final int ErrorUnreachable = 9; // Rejected without trying, the server is known to be down.
+
+    public final int activity;
+    public final String command; // The command the activity and error refer to, empty if none.
+    public final String doorState; // Empty while unknown.
+    public final int enabled;
+    public final int loud;
+    public final long serverTimestampMs; // 0 while unknown.
+    public final int errorKind;
+    public final String errorDescription;
+    public final String description; // For display.
+
+    private GaragePiStatus(int activity, String command, String doorState, int enabled, int loud,
+                           long serverTimestampMs, int errorKind, String errorDescription, String description) {
+        this.activity = activity;
+        this.command = command;
+        this.doorState = doorState;
+        this.enabled = enabled;
+        this.loud = loud;
+        this.serverTimestampMs = serverTimestampMs;
+        this.errorKind = errorKind;
+        this.errorDescription = errorDescription;
+        this.description = description;
+    }
+
+    static GaragePiStatus initial(boolean locallyEnabled) {
+        return new GaragePiStatus(ActivityIdle, "", "", FlagUnknown, FlagUnknown, 0,
+                ErrorNone, "", locallyEnabled ? "not connected" : "locally disabled");
+    }
+
+    boolean isError() { return errorKind != ErrorNone; }
+
+    GaragePiStatus withLocallyEnabled(boolean locallyEnabled) {
+        return new GaragePiStatus(ActivityIdle, "", doorState, enabled, loud, serverTimestampMs,
+                ErrorNone, "", locallyEnabled ? "not connected" : "locally disabled");
+    }
+
+    GaragePiStatus withActivity(int newActivity, String newCommand) {
+        final String newDescription = newActivity == ActivityConnecting
+                ? "connecting to server"
+                : "sent request: " + newCommand;
+        return new GaragePiStatus(newActivity, newCommand, doorState, enabled, loud, serverTimestampMs,
+                ErrorNone, "", newDescription);
+    }
+
+    GaragePiStatus withResponse(String newCommand, GaragePiProtocol.Response response) {
+        if(!response.isSuccess) {
+            return withError(newCommand, ErrorRejected, "rejected: " + newCommand, response.description);
+        }
+        if(response.description.trim().isEmpty()) {
+            return withError(newCommand, ErrorEmptyResponse, "empty response: " + newCommand, "");
+        }
+
+        return new GaragePiStatus(ActivityDone, newCommand,
+                response.doorState.isEmpty() ? doorState : response.doorState,
+                response.enabled == FlagUnknown ? enabled : response.enabled,
+                response.loud == FlagUnknown ? loud : response.loud,
+                response.serverTimestampMs == 0 ? serverTimestampMs : response.serverTimestampMs,
+                ErrorNone, "", response.description);
+    }
+
+    /**
+     * Takes the door state and settings from a successful response to a background request,
+     * leaving what the latest command is doing, and its description, as they are. Its error
+     * description was shown when it was published, so it isn't repeated.
+     */
+    GaragePiStatus withBackgroundResponse(GaragePiProtocol.Response response) {
+        return new GaragePiStatus(activity, command,
+                response.doorState.isEmpty() ? doorState : response.doorState,
+                response.enabled == FlagUnknown ? enabled : response.enabled,
+                response.loud == FlagUnknown ? loud : response.loud,
+                response.serverTimestampMs == 0 ? serverTimestampMs : response.serverTimestampMs,
+                errorKind, "", description);
+    }
+
+    GaragePiStatus withDoorState(String newDoorState, String newDescription) {
+        return new GaragePiStatus(ActivityDone, command, newDoorState, enabled, loud, serverTimestampMs,
+                ErrorNone, "", newDescription);
+    }
+
+    GaragePiStatus withError(String newCommand, int newErrorKind, String newDescription, String newErrorDescription) {
+        return new GaragePiStatus(ActivityDone, newCommand, doorState, enabled, loud, serverTimestampMs,
+                newErrorKind, newErrorDescription, newDescription);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(!(other instanceof GaragePiStatus)) {
+            return false;
+        }
+
+        final GaragePiStatus status = (GaragePiStatus) other;
+        return activity == status.activity &&
+                enabled == status.enabled &&
+                loud == status.loud &&
+                serverTimestampMs == status.serverTimestampMs &&
+                errorKind == status.errorKind &&
+                command.equals(status.command) &&
+                doorState.equals(status.doorState) &&
+                errorDescription.equals(status.errorDescription) &&
+                description.equals(status.description);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(activity, command, doorState, enabled, loud, serverTimestampMs, errorKind,
+                errorDescription, description);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return description;
+    }
+}
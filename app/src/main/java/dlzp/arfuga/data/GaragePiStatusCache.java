@@ -0,0 +1,91 @@
+package dlzp.arfuga.data;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Remembers the last door state reported by the GaragePi server, persisted across restarts, so it
+ * can be shown right away while a fresh status is requested in the background. A value older than
+ * the TTL is still shown, but marked as stale.
+ */
+class GaragePiStatusCache {
+    private static final String PreferencesDoorState = "dlzp.arfuga.data.GaragePiStatusCache.preferences.DoorState";
+    private static final String PreferencesDescription = "dlzp.arfuga.data.GaragePiStatusCache.preferences.Description";
+    private static final String PreferencesUpdatedMs = "dlzp.arfuga.data.GaragePiStatusCache.preferences.UpdatedMs";
+    private static final long NoValue = 0;
+    private static final long DayMs = 24 * 60 * 60 * 1000;
+
+    private final SharedPreferences preferences;
+    private final long ttlMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable markStale = this::postDisplay;
+    private final MutableLiveData<String> display = new MutableLiveData<>();
+
+    private String doorState;
+    private String description;
+    private long updatedMs;
+
+    GaragePiStatusCache(SharedPreferences preferences, long ttlMs) {
+        this.preferences = preferences;
+        this.ttlMs = ttlMs;
+        doorState = preferences.getString(PreferencesDoorState, "");
+        description = preferences.getString(PreferencesDescription, "");
+        updatedMs = preferences.getLong(PreferencesUpdatedMs, NoValue);
+        postDisplay();
+    }
+
+    /**
+     * The cached door state with its age, for display.
+     */
+    LiveData<String> getDisplay() { return display; }
+
+    synchronized long getAgeMs() {
+        return updatedMs == NoValue ? Long.MAX_VALUE : System.currentTimeMillis() - updatedMs;
+    }
+
+    void update(String newDoorState, String newDescription) {
+        synchronized (this) {
+            doorState = newDoorState;
+            description = newDescription;
+            updatedMs = System.currentTimeMillis();
+            preferences.edit()
+                    .putString(PreferencesDoorState, doorState)
+                    .putString(PreferencesDescription, description)
+                    .putLong(PreferencesUpdatedMs, updatedMs)
+                    .apply();
+        }
+        postDisplay();
+    }
+
+    private void postDisplay() {
+        final String text;
+        final long remainingTtlMs;
+        synchronized (this) {
+            if(updatedMs == NoValue) {
+                display.postValue("door status unknown");
+                return;
+            }
+
+            final long ageMs = System.currentTimeMillis() - updatedMs;
+            remainingTtlMs = ttlMs - ageMs;
+            final String timeFormat = ageMs < DayMs ? "HH:mm:ss" : "MMM d HH:mm";
+            text = "door " + (doorState.isEmpty() ? description : doorState) +
+                    " as of " + new SimpleDateFormat(timeFormat, Locale.getDefault()).format(new Date(updatedMs)) +
+                    (remainingTtlMs <= 0 ? " (stale)" : "");
+        }
+
+        display.postValue(text);
+        handler.removeCallbacks(markStale);
+        if(remainingTtlMs > 0) {
+            handler.postDelayed(markStale, remainingTtlMs);
+        }
+    }
+}
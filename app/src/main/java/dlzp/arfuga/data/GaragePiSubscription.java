@@ -0,0 +1,311 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * Keeps a long-lived connection on which the GaragePi server pushes door state changes, so that
+ * the door state stays current without sending status commands. The connection subscribes with a
+ * v2 SUBSCRIBE frame; the server acknowledges with the current door state and then sends a
+ * DOOR_EVENT frame whenever it changes.
+ *
+ * A dropped subscription is reconnected with exponential backoff. An idle subscription is probed
+ * with a HELLO now and then, so that a connection silently dropped by the network is noticed.
+ *
+ * Servers that don't support pushing (text-only servers, or v2 servers that reject SUBSCRIBE) get
+ * polled instead: the listener is asked to request the status at a slow interval, and briefly at a
+ * fast one after a command that moves the door. Polling slows down to the listener's pace while
+ * it asks to hold off. Push support is probed again on every start().
+ *
+ * Everything runs on the NioTransport's thread.
+ */
+class GaragePiSubscription implements NioConnection.Listener {
+    private static final String LOG_TAG = "GaragePiSubscription";
+    private static final long InitialBackoffMs = 1000;
+    private static final long MaxBackoffMs = 60 * 1000;
+    private static final long PingIntervalMs = 60 * 1000;
+    private static final long PingTimeoutMs = 10 * 1000;
+    private static final long PollIntervalMs = 30 * 1000;
+    private static final long FastPollIntervalMs = 3000;
+    private static final long FastPollWindowMs = 30 * 1000;
+
+    private static final int StateStopped = 0;
+    private static final int StateSubscribing = 1;
+    private static final int StateSubscribed = 2;
+    private static final int StateBackingOff = 3;
+    private static final int StatePolling = 4;
+
+    /**
+     * Called on the transport thread.
+     */
+    interface Listener {
+        void onDoorState(String doorState, String description);
+
+        /**
+         * The server can't push door state changes, so the status should be requested now.
+         * @return How long to hold off polling, e.g. while the server is known to be unreachable,
+         * or 0 to poll at the usual interval.
+         */
+        long onPollDue();
+    }
+
+    private final String host;
+    private final int port;
+    private final SSLContext sslContext;
+    private final NioTransport transport;
+    private final Listener listener;
+    private final GaragePiFrameDecoder decoder = new GaragePiFrameDecoder();
+
+    // Only touched on the transport thread.
+    private String key = null;
+    private int state = StateStopped;
+    private NioConnection connection = null;
+    private NioTransport.Timer timer = null;
+    private long backoffMs = InitialBackoffMs;
+    private long subscribedNs = 0;
+    private long lastReceivedNs = 0;
+    private long pingSentNs = 0;
+    private long fastPollUntilNs = 0;
+
+    private volatile boolean pushing = false;
+
+    GaragePiSubscription(String host, int port, SSLContext sslContext, NioTransport transport, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.sslContext = sslContext;
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /**
+     * @return True while the server is pushing door state changes, which makes polling for them
+     * pointless. Safe to call from any thread.
+     */
+    boolean isPushing() { return pushing; }
+
+    /**
+     * Subscribes to door state changes, falling back to polling if the server can't push them.
+     * Does nothing if already started. Safe to call from any thread.
+     */
+    void start(String subscriptionKey) {
+        transport.post(() -> {
+            if(state != StateStopped) {
+                return;
+            }
+            key = subscriptionKey;
+            backoffMs = InitialBackoffMs;
+            subscribe();
+        });
+    }
+
+    /**
+     * Closes the subscription and stops any polling. Safe to call from any thread.
+     */
+    void stop() {
+        transport.post(() -> {
+            Log.d(LOG_TAG, "Stopping GaragePi subscription");
+            state = StateStopped;
+            reset();
+        });
+    }
+
+    /**
+     * Lets polling follow a command that moves the door closely, as the door state changes several
+     * times over the following seconds. Pushed changes need no help. Safe to call from any thread.
+     */
+    void onCommandSent(String garagePiCommand) {
+        if(!garagePiCommand.equals(Constants.GaragePiCmdToggle) &&
+                !garagePiCommand.equals(Constants.GaragePiCmdTimed)) {
+            return;
+        }
+
+        transport.post(() -> {
+            if(state != StatePolling) {
+                return;
+            }
+            fastPollUntilNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FastPollWindowMs);
+            schedule(this::poll, FastPollIntervalMs);
+        });
+    }
+
+    private void reset() {
+        pushing = false;
+        cancelTimer();
+        if(connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    private void schedule(Runnable task, long delayMs) {
+        cancelTimer();
+        timer = transport.schedule(task, delayMs);
+    }
+
+    private void cancelTimer() {
+        if(timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private void subscribe() {
+        Log.d(LOG_TAG, "Subscribing to GaragePi door state");
+        reset();
+        state = StateSubscribing;
+        decoder.reset();
+        connection = transport.connect(host, port, sslContext, this);
+    }
+
+    @Override
+    public void onConnected(NioConnection readyConnection) {
+        if(readyConnection != connection) {
+            return;
+        }
+
+        // Servers that don't know SUBSCRIBE may not answer at all.
+        schedule(() -> onPushUnsupported(new SocketTimeoutException("GaragePi SUBSCRIBE timed out")),
+                GaragePiProtocol.NegotiationTimeoutMs);
+        readyConnection.write(new GaragePiFrame(GaragePiFrame.OpSubscribe)
+                .putString(GaragePiFrame.FieldKey, key)
+                .encode());
+    }
+
+    @Override
+    public void onData(NioConnection dataConnection, ByteBuffer data) {
+        if(dataConnection != connection) {
+            return;
+        }
+        lastReceivedNs = System.nanoTime();
+        pingSentNs = 0;
+
+        try {
+            decoder.feed(data);
+            GaragePiFrame frame;
+            while((frame = decoder.poll()) != null && dataConnection == connection) {
+                onFrame(frame);
+            }
+        } catch (ProtocolException e) {
+            if(state == StateSubscribing) {
+                // Most likely a text-only server replying to a request it couldn't read.
+                onPushUnsupported(e);
+            } else {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private void onFrame(GaragePiFrame frame) {
+        if(state == StateSubscribing) {
+            if(frame.status != GaragePiFrame.StatusOk) {
+                onPushUnsupported(new ProtocolException(
+                        "SUBSCRIBE rejected: " + GaragePiFrame.describeStatus(frame.status)));
+                return;
+            }
+
+            Log.i(LOG_TAG, "Subscribed to GaragePi door state");
+            state = StateSubscribed;
+            pushing = true;
+            subscribedNs = System.nanoTime();
+            schedule(this::checkAlive, PingIntervalMs);
+            reportDoorState(frame);
+            return;
+        }
+
+        if(frame.opcode == GaragePiFrame.OpDoorEvent) {
+            reportDoorState(frame);
+        } else if (frame.opcode != GaragePiFrame.OpHello) {
+            Log.w(LOG_TAG, "Ignoring unexpected GaragePi frame, opcode " + frame.opcode);
+        }
+    }
+
+    private void reportDoorState(GaragePiFrame frame) {
+        final String doorState = frame.getString(GaragePiFrame.FieldDoorState, "");
+        if(doorState.isEmpty()) {
+            return;
+        }
+        Log.d(LOG_TAG, "GaragePi door state pushed: " + doorState);
+        listener.onDoorState(doorState, frame.getString(GaragePiFrame.FieldMessage, doorState));
+    }
+
+    /**
+     * Sends a HELLO over a subscription that has been quiet for a while, and drops the
+     * subscription if the server doesn't answer it in time.
+     */
+    private void checkAlive() {
+        timer = null;
+        final long nowNs = System.nanoTime();
+        if(pingSentNs != 0) {
+            if(TimeUnit.NANOSECONDS.toMillis(nowNs - pingSentNs) >= PingTimeoutMs) {
+                connection.fail(new SocketTimeoutException("GaragePi subscription stopped responding"));
+                return;
+            }
+            schedule(this::checkAlive, PingTimeoutMs);
+            return;
+        }
+
+        final long idleMs = TimeUnit.NANOSECONDS.toMillis(nowNs - lastReceivedNs);
+        if(idleMs < PingIntervalMs) {
+            schedule(this::checkAlive, PingIntervalMs - idleMs);
+            return;
+        }
+
+        pingSentNs = nowNs;
+        connection.write(new GaragePiFrame(GaragePiFrame.OpHello)
+                .putLong(GaragePiFrame.FieldVersion, GaragePiFrame.Version)
+                .encode());
+        schedule(this::checkAlive, PingTimeoutMs);
+    }
+
+    @Override
+    public void onClosed(NioConnection closedConnection, IOException cause) {
+        if(closedConnection != connection) {
+            return;
+        }
+        connection = null;
+
+        if(state == StateSubscribing && cause instanceof EOFException) {
+            // Older servers close the connection on an unrecognized request.
+            onPushUnsupported(cause);
+            return;
+        }
+        reconnectLater(cause);
+    }
+
+    private void reconnectLater(IOException cause) {
+        // Only a subscription that held up for a while resets the backoff, so that a server that
+        // keeps accepting and dropping subscriptions isn't hammered.
+        if(pushing && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - subscribedNs) >= PingIntervalMs) {
+            backoffMs = InitialBackoffMs;
+        }
+        reset();
+        state = StateBackingOff;
+        Log.i(LOG_TAG, "GaragePi subscription lost, retrying in " + backoffMs + "ms: " + cause);
+        schedule(this::subscribe, backoffMs);
+        backoffMs = Math.min(backoffMs * 2, MaxBackoffMs);
+    }
+
+    private void onPushUnsupported(IOException cause) {
+        Log.i(LOG_TAG, "GaragePi server can't push door state, polling instead: " + cause);
+        reset();
+        state = StatePolling;
+        poll();
+    }
+
+    private void poll() {
+        timer = null;
+        final long holdOffMs = listener.onPollDue();
+        final long intervalMs = System.nanoTime() - fastPollUntilNs < 0 ? FastPollIntervalMs : PollIntervalMs;
+        schedule(this::poll, Math.max(intervalMs, holdOffMs));
+    }
+}
@@ -0,0 +1,216 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves host names for an NioTransport and caches the results, so that a command usually
+ * starts connecting without waiting on DNS at all.
+ *
+ * Successful lookups are cached for PositiveTtlMs and refreshed in the background once they are
+ * close to expiring. An expired result keeps being used for up to MaxStaleMs while a refresh runs,
+ * as an old address is far more likely to still work than a lookup on a poor mobile connection is
+ * to be quick. Should connecting to the stale addresses fail, the connection looks the host up
+ * again with resolveAgain before giving up. Failed lookups are cached for NegativeTtlMs so that a
+ * host that doesn't resolve fails fast instead of repeatedly waiting for DNS timeouts. Concurrent
+ * lookups of the same host share one query.
+ *
+ * InetAddress doesn't expose the records' TTLs, so these fixed TTLs apply whatever the records'
+ * own TTLs are.
+ *
+ * Lookups run on one resolver thread, as InetAddress only offers blocking lookups. Everything else,
+ * including the callbacks, runs on the transport thread.
+ */
+class HostResolver {
+    private static final String LOG_TAG = "HostResolver";
+    private static final long PositiveTtlMs = 5 * 60 * 1000;
+    private static final long RefreshAheadMs = 60 * 1000;
+    private static final long MaxStaleMs = 10 * 60 * 1000;
+    private static final long NegativeTtlMs = 10 * 1000;
+
+    static final int ResultLookedUp = 0;
+    static final int ResultCached = 1;
+    static final int ResultStale = 2;
+
+    interface Callback {
+        /**
+         * @param addresses Ordered for connecting, see orderForConnecting.
+         * @param result One of the Result constants, describing where the addresses came from.
+         */
+        void onResolved(List<InetAddress> addresses, int result);
+        void onFailed(UnknownHostException e);
+    }
+
+    private static class Entry {
+        List<InetAddress> addresses = null;
+        UnknownHostException failure = null;
+        long resolvedNs = 0;
+        boolean preferIpv6 = true;
+        List<Callback> pending = null; // Not null while a lookup is running.
+    }
+
+    private final NioTransport transport;
+    private final ExecutorService resolverExecutor = Executors.newSingleThreadExecutor(
+            (Runnable runnable) -> new Thread(runnable, "DLZP-resolver"));
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    HostResolver(NioTransport transport) {
+        this.transport = transport;
+    }
+
+    static String describeResult(int result) {
+        switch (result) {
+            case ResultLookedUp: return "looked up";
+            case ResultCached: return "cached";
+            case ResultStale: return "stale";
+            default: return "result " + result;
+        }
+    }
+
+    void resolve(String host, Callback callback) {
+        final Entry entry = getEntry(host);
+        final long ageMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.resolvedNs);
+        if(entry.addresses != null && ageMs < PositiveTtlMs + MaxStaleMs) {
+            final boolean stale = ageMs >= PositiveTtlMs;
+            if(ageMs >= PositiveTtlMs - RefreshAheadMs) {
+                lookUp(host, entry, null);
+            }
+            callback.onResolved(orderForConnecting(entry.addresses, entry.preferIpv6),
+                    stale ? ResultStale : ResultCached);
+            return;
+        }
+        if(entry.failure != null && ageMs < NegativeTtlMs) {
+            callback.onFailed(entry.failure);
+            return;
+        }
+
+        lookUp(host, entry, callback);
+    }
+
+    /**
+     * Looks the host up even though a result is cached, e.g. because connecting to its stale
+     * addresses failed.
+     */
+    void resolveAgain(String host, Callback callback) {
+        lookUp(host, getEntry(host), callback);
+    }
+
+    private Entry getEntry(String host) {
+        Entry entry = entries.get(host);
+        if(entry == null) {
+            entry = new Entry();
+            entries.put(host, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Lets the next connection to the host try the address family that won this time first.
+     */
+    void onConnected(String host, InetAddress address) {
+        final Entry entry = entries.get(host);
+        if(entry != null) {
+            entry.preferIpv6 = address instanceof Inet6Address;
+        }
+    }
+
+    /**
+     * Forgets every cached result, e.g. because the device switched networks and the same host
+     * may now resolve differently.
+     */
+    void invalidate() {
+        for(Entry entry : entries.values()) {
+            entry.addresses = null;
+            entry.failure = null;
+        }
+    }
+
+    private void lookUp(String host, Entry entry, Callback callback) {
+        final boolean running = entry.pending != null;
+        if(!running) {
+            entry.pending = new ArrayList<>();
+        }
+        if(callback != null) {
+            entry.pending.add(callback);
+        }
+        if(running) {
+            return;
+        }
+
+        final long startNs = System.nanoTime();
+        resolverExecutor.execute(() -> {
+            try {
+                final InetAddress[] addresses = InetAddress.getAllByName(host);
+                transport.post(() -> onLookedUp(host, entry, addresses, null, startNs));
+            } catch (UnknownHostException e) {
+                transport.post(() -> onLookedUp(host, entry, null, e, startNs));
+            }
+        });
+    }
+
+    private void onLookedUp(String host, Entry entry, InetAddress[] addresses, UnknownHostException failure,
+                            long startNs) {
+        final long lookupMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        final List<Callback> callbacks = entry.pending;
+        entry.pending = null;
+
+        if(failure == null) {
+            Log.d(LOG_TAG, "Resolved " + host + " in " + lookupMs + "ms to " + addresses.length + " addresses");
+            entry.addresses = new ArrayList<>();
+            for(InetAddress address : addresses) {
+                entry.addresses.add(address);
+            }
+            entry.failure = null;
+            entry.resolvedNs = System.nanoTime();
+            for(Callback callback : callbacks) {
+                callback.onResolved(orderForConnecting(entry.addresses, entry.preferIpv6), ResultLookedUp);
+            }
+            return;
+        }
+
+        Log.w(LOG_TAG, "Unable to resolve " + host + " after " + lookupMs + "ms: " + failure);
+        if(entry.addresses != null && callbacks.isEmpty()) {
+            // A background refresh failed; the stale addresses are still better than nothing.
+            return;
+        }
+        entry.addresses = null;
+        entry.failure = failure;
+        entry.resolvedNs = System.nanoTime();
+        for(Callback callback : callbacks) {
+            callback.onFailed(failure);
+        }
+    }
+
+    /**
+     * Interleaves the address families, starting with the preferred one, so that a connection
+     * race alternates between them (RFC 8305).
+     */
+    private static List<InetAddress> orderForConnecting(List<InetAddress> addresses, boolean preferIpv6) {
+        final List<InetAddress> preferred = new ArrayList<>();
+        final List<InetAddress> other = new ArrayList<>();
+        for(InetAddress address : addresses) {
+            ((address instanceof Inet6Address) == preferIpv6 ? preferred : other).add(address);
+        }
+
+        final List<InetAddress> ordered = new ArrayList<>(addresses.size());
+        for(int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if(i < preferred.size()) {
+                ordered.add(preferred.get(i));
+            }
+            if(i < other.size()) {
+                ordered.add(other.get(i));
+            }
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,187 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admits DLZPServerClient's network operations in priority lanes, each with its own limit on
+ * operations in flight and its own bounded queue:
+ *
+ *   Interactive - garage commands from button presses and UI taps
+ *   Status      - status polls
+ *   Bulk        - FuelTracker uploads
+ *
+ * Operations are asynchronous and started on the NioTransport's thread, so an operation in flight
+ * holds a lane slot rather than a thread. As no lane can borrow another lane's slots, interactive
+ * work never waits behind background work, and a burst of submissions queues (or is rejected once
+ * the lane is full) instead of piling up without bound. Free slots are handed out in lane order.
+ *
+ * Work can be submitted with a supersede key, in which case it replaces any work with the same key
+ * that is still waiting in the queue.
+ */
+class NetworkScheduler {
+    private static final String LOG_TAG = "NetworkScheduler";
+
+    static final int LaneInteractive = 0;
+    static final int LaneStatus = 1;
+    static final int LaneBulk = 2;
+
+    private static final String[] LaneNames = { "interactive", "status", "bulk" };
+    private static final int[] LaneMaxInFlight = { 4, 1, 1 };
+    private static final int[] LaneMaxQueued = { 16, 4, 4 };
+
+    /**
+     * An asynchronous network operation.
+     */
+    interface Operation {
+        /**
+         * Starts the operation on the transport thread.
+         * @param onFinished Must be run exactly once when the operation has finished, from any
+         * thread.
+         */
+        void start(Runnable onFinished);
+    }
+
+    private static class QueuedOperation {
+        final Operation operation;
+        final String supersedeKey;
+        final long queuedNs = System.nanoTime();
+
+        QueuedOperation(Operation operation, String supersedeKey) {
+            this.operation = operation;
+            this.supersedeKey = supersedeKey;
+        }
+    }
+
+    /**
+     * A lane's queue and counters. Only modified while holding the scheduler's lock.
+     */
+    private static class Lane {
+        final String name;
+        final int maxInFlight;
+        final int maxQueued;
+        final ArrayDeque<QueuedOperation> queue = new ArrayDeque<>();
+        int inFlight = 0;
+        int submitted = 0;
+        int superseded = 0;
+        int rejected = 0;
+        int started = 0;
+        int maxQueueDepth = 0;
+        long maxQueueWaitMs = 0;
+
+        Lane(int lane) {
+            name = LaneNames[lane];
+            maxInFlight = LaneMaxInFlight[lane];
+            maxQueued = LaneMaxQueued[lane];
+        }
+
+        @Override
+        public String toString() {
+            return name +
+                    " queued: " + queue.size() +
+                    ", in flight: " + inFlight +
+                    ", submitted: " + submitted +
+                    ", started: " + started +
+                    ", superseded: " + superseded +
+                    ", rejected: " + rejected +
+                    ", max queued: " + maxQueueDepth +
+                    ", max wait: " + maxQueueWaitMs + "ms";
+        }
+    }
+
+    private final NioTransport transport;
+    private final Lane[] lanes = new Lane[LaneNames.length];
+
+    NetworkScheduler(NioTransport transport) {
+        this.transport = transport;
+        for(int lane = 0; lane < lanes.length; lane++) {
+            lanes[lane] = new Lane(lane);
+        }
+    }
+
+    void submit(int lane, Operation operation) {
+        submit(lane, null, operation);
+    }
+
+    /**
+     * Queues the operation on the given lane.
+     * @param supersedeKey If not null, any operation with the same key still waiting in the lane's
+     * queue is dropped in favor of this one.
+     * @throws RejectedExecutionException If the lane's queue is full.
+     */
+    synchronized void submit(int lane, String supersedeKey, Operation operation) {
+        final Lane targetLane = lanes[lane];
+
+        // Superseded work is dropped first so that its queue slot is free for the new work.
+        if(supersedeKey != null) {
+            for(Iterator<QueuedOperation> iterator = targetLane.queue.iterator(); iterator.hasNext(); ) {
+                if(supersedeKey.equals(iterator.next().supersedeKey)) {
+                    iterator.remove();
+                    targetLane.superseded++;
+                    Log.d(LOG_TAG, "Superseded queued " + supersedeKey + " on " + targetLane.name + " lane");
+                }
+            }
+        }
+
+        if(targetLane.queue.size() >= targetLane.maxQueued) {
+            targetLane.rejected++;
+            Log.w(LOG_TAG, "Rejected work on full " + targetLane.name + " lane - " + targetLane);
+            throw new RejectedExecutionException("Network " + targetLane.name + " lane is full");
+        }
+
+        targetLane.queue.add(new QueuedOperation(operation, supersedeKey));
+        targetLane.submitted++;
+        targetLane.maxQueueDepth = Math.max(targetLane.maxQueueDepth, targetLane.queue.size());
+        dispatch();
+    }
+
+    private void dispatch() {
+        for(Lane lane : lanes) {
+            while(lane.inFlight < lane.maxInFlight && !lane.queue.isEmpty()) {
+                final QueuedOperation queued = lane.queue.poll();
+                lane.inFlight++;
+                lane.started++;
+                lane.maxQueueWaitMs = Math.max(lane.maxQueueWaitMs,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued.queuedNs));
+                transport.post(() -> start(lane, queued.operation));
+            }
+        }
+    }
+
+    private void start(Lane lane, Operation operation) {
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final Runnable onFinished = () -> {
+            if(finished.compareAndSet(false, true)) {
+                onOperationFinished(lane);
+            }
+        };
+
+        try {
+            operation.start(onFinished);
+        } catch (RuntimeException e) {
+            onFinished.run();
+            throw e;
+        }
+    }
+
+    private synchronized void onOperationFinished(Lane lane) {
+        lane.inFlight--;
+        dispatch();
+    }
+
+    synchronized String getStatsDescription() {
+        final StringBuilder description = new StringBuilder();
+        for(Lane lane : lanes) {
+            if(description.length() > 0) {
+                description.append("\n");
+            }
+            description.append(lane);
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,584 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A non-blocking connection driven by an NioTransport, optionally secured with an SSLEngine. Bytes
+ * to and from the channel always pass through direct buffers, which the channel reads and writes
+ * without an extra copy.
+ *
+ * When the host has several addresses, they are raced Happy Eyeballs style (RFC 8305): the next
+ * address is tried whenever the previous attempt fails or hasn't connected within
+ * AttemptDelayMs, and the first attempt to connect wins while the others are abandoned. If every
+ * address fails and they came from a stale cache entry, the host is looked up again once and the
+ * addresses it resolves to now are raced instead.
+ *
+ * All methods, and all listener callbacks, run on the transport thread.
+ */
+class NioConnection {
+    private static final String LOG_TAG = "NioConnection";
+    private static final int PlainBufferSize = 16 * 1024;
+    private static final ByteBuffer EmptyBuffer = ByteBuffer.allocate(0);
+    private static final long AttemptDelayMs = 250;
+
+    interface Listener {
+        /**
+         * The connection is established, and if secured, handshaked and verified.
+         */
+        void onConnected(NioConnection connection);
+
+        /**
+         * Bytes received from the peer. The buffer is only valid during the call; any bytes not
+         * consumed are dropped.
+         */
+        void onData(NioConnection connection, ByteBuffer data);
+
+        /**
+         * The connection failed or was closed by the peer. Not called after close().
+         */
+        void onClosed(NioConnection connection, IOException cause);
+    }
+
+    private final NioTransport transport;
+    private final String host;
+    private final SSLEngine engine;
+    private final Listener listener;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ArrayDeque<InetSocketAddress> candidates = new ArrayDeque<>();
+    private final List<SelectionKey> attempts = new ArrayList<>();
+
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private NioTransport.Timer connectTimeout = null;
+    private NioTransport.Timer nextAttempt = null;
+    private IOException lastAttemptFailure = null;
+    private InetSocketAddress remoteAddress = null;
+    private int attemptsStarted = 0;
+    private int resolverResult = HostResolver.ResultLookedUp;
+    private int port = 0;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private final long createdNs = System.nanoTime();
+    private long resolvedNs = 0;
+    private long channelConnectedNs = 0;
+    private long delegatedTasksNs = 0;
+    private long handshakeStartMs = 0;
+    private boolean sessionResumed = false;
+    private boolean channelConnected = false;
+    private boolean ready = false;
+    private boolean closed = false;
+    private boolean pumping = false;
+
+    NioConnection(NioTransport transport, String host, SSLEngine engine, Listener listener) {
+        this.transport = transport;
+        this.host = host;
+        this.engine = engine;
+        this.listener = listener;
+
+        if(engine != null) {
+            final SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocateDirect(session.getApplicationBufferSize());
+        } else {
+            netIn = ByteBuffer.allocateDirect(PlainBufferSize);
+            netOut = ByteBuffer.allocateDirect(PlainBufferSize);
+        }
+    }
+
+    boolean isOpen() { return !closed; }
+
+    /**
+     * @return True if the TLS handshake resumed a previously cached session.
+     */
+    boolean wasSessionResumed() { return sessionResumed; }
+
+    void setConnectTimeout(NioTransport.Timer timer) { connectTimeout = timer; }
+
+    /**
+     * @return The address the connection was established to, or null if it isn't yet.
+     */
+    InetSocketAddress getRemoteAddress() { return remoteAddress; }
+
+    boolean isIpv6() { return remoteAddress != null && remoteAddress.getAddress() instanceof Inet6Address; }
+
+    /**
+     * @return How many addresses were tried to establish the connection.
+     */
+    int getAttemptsStarted() { return attemptsStarted; }
+
+    /**
+     * @return Where the addresses connected to came from, one of the HostResolver Result constants.
+     */
+    int getResolverResult() { return resolverResult; }
+
+    /**
+     * Queues the bytes to be sent once the connection is ready.
+     */
+    void write(byte[] data) {
+        if(closed) {
+            return;
+        }
+        outbound.add(ByteBuffer.wrap(data));
+        if(!pumping) {
+            pump();
+        }
+    }
+
+    /**
+     * Closes the connection, making a best effort to send anything still queued first.
+     */
+    void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(connectTimeout != null) {
+            connectTimeout.cancel();
+        }
+        abandonAttempts(null);
+
+        try {
+            if(engine != null && channelConnected) {
+                engine.closeOutbound();
+                engine.wrap(EmptyBuffer, netOut);
+            }
+            if(channelConnected) {
+                flushNetOut();
+            }
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Ignoring exception while closing connection to " + host + ": " + e);
+        }
+
+        if(key != null) {
+            key.cancel();
+        }
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.d(LOG_TAG, "Ignoring exception while closing channel to " + host + ": " + e);
+            }
+        }
+    }
+
+    void fail(IOException cause) {
+        if(closed) {
+            return;
+        }
+        close();
+        listener.onClosed(this, cause);
+    }
+
+    /**
+     * Connects to the first of the addresses that accepts the connection.
+     * @param addresses In the order they should be tried.
+     * @param result Where the addresses came from, one of the HostResolver Result constants.
+     */
+    void connectTo(List<InetAddress> addresses, int port, int result) {
+        if(closed) {
+            return;
+        }
+
+        if(resolvedNs == 0) {
+            // A second lookup after stale addresses failed would add the failed attempts to it.
+            transport.getLatencies().recordSince(PhaseLatencies.PhaseDns, createdNs);
+        }
+        this.port = port;
+        resolverResult = result;
+        resolvedNs = System.nanoTime();
+        for(InetAddress address : addresses) {
+            candidates.add(new InetSocketAddress(address, port));
+        }
+        startNextAttempt();
+    }
+
+    private void startNextAttempt() {
+        nextAttempt = null;
+        while(!closed && !candidates.isEmpty()) {
+            final InetSocketAddress address = candidates.poll();
+            attemptsStarted++;
+            SocketChannel attemptChannel = null;
+            try {
+                attemptChannel = SocketChannel.open();
+                attemptChannel.configureBlocking(false);
+                attemptChannel.socket().setTcpNoDelay(true);
+                attemptChannel.socket().setKeepAlive(true);
+                final SelectionKey attemptKey = transport.register(attemptChannel, this);
+                if(attemptChannel.connect(address)) {
+                    onAttemptConnected(attemptKey);
+                    return;
+                }
+
+                attemptKey.interestOps(SelectionKey.OP_CONNECT);
+                attempts.add(attemptKey);
+                if(!candidates.isEmpty()) {
+                    nextAttempt = transport.schedule(this::startNextAttempt, AttemptDelayMs);
+                }
+                return;
+            } catch (IOException e) {
+                // e.g. no route for this address family; go straight to the next address.
+                Log.d(LOG_TAG, "Connecting to " + address + " failed: " + e);
+                lastAttemptFailure = e;
+                closeQuietly(attemptChannel);
+            }
+        }
+
+        if(!closed && attempts.isEmpty()) {
+            if(resolverResult == HostResolver.ResultStale) {
+                Log.i(LOG_TAG, "Stale addresses of " + host + " failed, looking it up again: " + lastAttemptFailure);
+                // Only once, as the new result isn't stale.
+                resolverResult = HostResolver.ResultLookedUp;
+                transport.resolveAgain(this, host, port);
+                return;
+            }
+            fail(lastAttemptFailure != null ? lastAttemptFailure : new IOException("No addresses for " + host));
+        }
+    }
+
+    private void onAttemptFailed(SelectionKey attemptKey, IOException cause) {
+        Log.d(LOG_TAG, "An attempt to connect to " + host + " failed: " + cause);
+        lastAttemptFailure = cause;
+        attempts.remove(attemptKey);
+        attemptKey.cancel();
+        closeQuietly((SocketChannel) attemptKey.channel());
+
+        if(nextAttempt != null) {
+            nextAttempt.cancel();
+        }
+        startNextAttempt();
+    }
+
+    private void onAttemptConnected(SelectionKey attemptKey) {
+        abandonAttempts(attemptKey);
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseConnect, resolvedNs);
+        key = attemptKey;
+        channel = (SocketChannel) attemptKey.channel();
+        try {
+            remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            transport.onConnectionEstablished(this, host);
+            onChannelConnected();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops every connection attempt but the winner, if there is one.
+     */
+    private void abandonAttempts(SelectionKey winner) {
+        if(nextAttempt != null) {
+            nextAttempt.cancel();
+            nextAttempt = null;
+        }
+        candidates.clear();
+        for(SelectionKey attemptKey : attempts) {
+            if(attemptKey != winner) {
+                attemptKey.cancel();
+                closeQuietly((SocketChannel) attemptKey.channel());
+            }
+        }
+        attempts.clear();
+    }
+
+    private void closeQuietly(SocketChannel attemptChannel) {
+        if(attemptChannel == null) {
+            return;
+        }
+        try {
+            attemptChannel.close();
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "Ignoring exception while closing channel to " + host + ": " + e);
+        }
+    }
+
+    void onSelected(SelectionKey selectedKey, int readyOps) {
+        if(closed) {
+            return;
+        }
+
+        if(!channelConnected) {
+            if((readyOps & SelectionKey.OP_CONNECT) == 0 || !attempts.contains(selectedKey)) {
+                return;
+            }
+            final boolean connected;
+            try {
+                connected = ((SocketChannel) selectedKey.channel()).finishConnect();
+            } catch (IOException e) {
+                onAttemptFailed(selectedKey, e);
+                return;
+            }
+            if(connected) {
+                onAttemptConnected(selectedKey);
+            }
+            return;
+        }
+        if(selectedKey != key) {
+            return;
+        }
+
+        try {
+            boolean endOfStream = false;
+            if((readyOps & SelectionKey.OP_READ) != 0) {
+                endOfStream = channel.read(netIn) < 0;
+            }
+            pump();
+
+            if(endOfStream && !closed) {
+                if(engine != null) {
+                    try {
+                        engine.closeInbound();
+                    } catch (SSLException e) {
+                        // The peer didn't send close_notify, which servers commonly skip.
+                    }
+                }
+                fail(new EOFException("Connection closed by " + host));
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void onChannelConnected() throws IOException {
+        channelConnected = true;
+        channelConnectedNs = System.nanoTime();
+        key.interestOps(SelectionKey.OP_READ);
+        if(engine != null) {
+            handshakeStartMs = System.currentTimeMillis();
+            engine.beginHandshake();
+        } else {
+            onReady();
+        }
+        pump();
+    }
+
+    private void onHandshakeFinished() {
+        if(ready) {
+            return;
+        }
+
+        transport.getLatencies().recordSince(PhaseLatencies.PhaseTls, channelConnectedNs);
+        transport.getLatencies().record(PhaseLatencies.PhaseVerify, delegatedTasksNs / 1000);
+
+        // The host name was already verified during the handshake, see NioTransport.connect.
+        final SSLSession session = engine.getSession();
+
+        // A resumed session was created during an earlier handshake.
+        sessionResumed = session.getCreationTime() < handshakeStartMs;
+        onReady();
+    }
+
+    private void onReady() {
+        ready = true;
+        if(connectTimeout != null) {
+            connectTimeout.cancel();
+            connectTimeout = null;
+        }
+        listener.onConnected(this);
+    }
+
+    /**
+     * Moves bytes in both directions until no more progress can be made without the channel
+     * becoming readable or writable again.
+     */
+    private void pump() {
+        if(closed || !channelConnected) {
+            return;
+        }
+
+        pumping = true;
+        try {
+            boolean progress;
+            do {
+                progress = processInbound();
+                if(closed) {
+                    return;
+                }
+                progress |= processOutbound();
+            } while(progress && !closed);
+
+            if(!closed) {
+                key.interestOps(netOut.position() > 0
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private boolean processInbound() throws IOException {
+        if(engine == null) {
+            if(!ready || netIn.position() == 0) {
+                return false;
+            }
+            netIn.flip();
+            listener.onData(this, netIn);
+            netIn.clear();
+            return true;
+        }
+
+        boolean progress = false;
+        netIn.flip();
+        try {
+            while(!closed) {
+                final SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+                if(handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    progress = true;
+                    continue;
+                }
+                if(handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_WRAP || !netIn.hasRemaining()) {
+                    break;
+                }
+
+                final SSLEngineResult result = engine.unwrap(netIn, appIn);
+                progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    onHandshakeFinished();
+                }
+                if(appIn.position() > 0 && !closed) {
+                    appIn.flip();
+                    listener.onData(this, appIn);
+                    appIn.clear();
+                }
+
+                if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    if(netIn.limit() == netIn.capacity()) {
+                        // The record is larger than the buffer; make room for the rest of it.
+                        final ByteBuffer grown = ByteBuffer.allocateDirect(
+                                Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                        grown.put(netIn);
+                        grown.flip();
+                        netIn = grown;
+                    }
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if(result.bytesProduced() == 0) {
+                        appIn = ByteBuffer.allocateDirect(
+                                Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                    }
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    fail(new EOFException("Connection closed by " + host));
+                    break;
+                }
+            }
+        } finally {
+            if(!closed) {
+                netIn.compact();
+            }
+        }
+        return progress;
+    }
+
+    private boolean processOutbound() throws IOException {
+        boolean progress = flushNetOut();
+        if(netOut.position() > 0 || !ready && engine == null) {
+            return progress;
+        }
+
+        if(engine == null) {
+            while(!outbound.isEmpty() && netOut.hasRemaining()) {
+                final ByteBuffer source = outbound.peek();
+                final int count = Math.min(source.remaining(), netOut.remaining());
+                final int sourceLimit = source.limit();
+                source.limit(source.position() + count);
+                netOut.put(source);
+                source.limit(sourceLimit);
+                if(!source.hasRemaining()) {
+                    outbound.poll();
+                }
+                progress = true;
+            }
+            flushNetOut();
+            return progress;
+        }
+
+        while(!closed) {
+            final SSLEngineResult.HandshakeStatus handshakeStatus = engine.getHandshakeStatus();
+            if(handshakeStatus == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                progress = true;
+                continue;
+            }
+
+            final boolean handshaking = handshakeStatus != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+            if(handshaking && handshakeStatus != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+            final ByteBuffer source = (handshaking || !ready) ? EmptyBuffer : outbound.peek();
+            if(source == null) {
+                break;
+            }
+
+            final SSLEngineResult result = engine.wrap(source, netOut);
+            if(source != EmptyBuffer && !source.hasRemaining()) {
+                outbound.poll();
+            }
+            progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                onHandshakeFinished();
+            }
+
+            if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                netOut = ByteBuffer.allocateDirect(
+                        Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                continue;
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                break;
+            }
+
+            flushNetOut();
+            if(netOut.position() > 0 || (source == EmptyBuffer && result.bytesProduced() == 0)) {
+                // Either the channel is full, or the engine has nothing to send until it has
+                // received more.
+                break;
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * @return True if any bytes were written.
+     */
+    private boolean flushNetOut() throws IOException {
+        if(netOut.position() == 0) {
+            return false;
+        }
+        netOut.flip();
+        final int written = channel.write(netOut);
+        netOut.compact();
+        return written > 0;
+    }
+
+    private void runDelegatedTasks() {
+        // These are certificate checks and key computations that only take a few milliseconds, so
+        // they're run inline rather than on another thread.
+        final long startNs = System.nanoTime();
+        Runnable task;
+        while((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        delegatedTasksNs += System.nanoTime() - startNs;
+    }
+}
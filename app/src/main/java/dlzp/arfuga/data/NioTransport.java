@@ -0,0 +1,283 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Drives all of DLZPServerClient's server connections from a single selector thread. Connections
+ * are non-blocking SocketChannels (see NioConnection), so any number of requests can be in flight
+ * without holding a thread each. Host names are resolved and cached by a HostResolver, and a host's
+ * addresses are raced against each other when connecting (see NioConnection).
+ *
+ * Connections, their listeners and timers are only ever touched on the transport thread. Work from
+ * other threads is handed over with post().
+ */
+class NioTransport {
+    private static final String LOG_TAG = "NioTransport";
+    private static final long ConnectTimeoutMs = 15000;
+
+    /**
+     * A task scheduled to run on the transport thread after a delay.
+     */
+    static final class Timer implements Comparable<Timer> {
+        private final long deadlineNs;
+        private final long order;
+        private final Runnable task;
+        private boolean cancelled = false;
+
+        private Timer(long deadlineNs, long order, Runnable task) {
+            this.deadlineNs = deadlineNs;
+            this.order = order;
+            this.task = task;
+        }
+
+        /**
+         * Must be called on the transport thread.
+         */
+        void cancel() { cancelled = true; }
+
+        @Override
+        public int compareTo(Timer other) {
+            if(deadlineNs != other.deadlineNs) {
+                return deadlineNs - other.deadlineNs < 0 ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Counters for how connections were established. Only modified on the transport thread;
+     * volatile so that they can be described from any thread.
+     */
+    static class Stats {
+        private volatile int ipv4Connections = 0;
+        private volatile int ipv6Connections = 0;
+        private volatile int fallbackConnections = 0;
+        private volatile int lookedUp = 0;
+        private volatile int cached = 0;
+        private volatile int stale = 0;
+        private volatile int staleFailed = 0;
+        private volatile String lastConnection = "none";
+
+        @Override
+        public String toString() {
+            return "IPv4: " + ipv4Connections +
+                    ", IPv6: " + ipv6Connections +
+                    ", won by a later address: " + fallbackConnections +
+                    ", DNS looked up: " + lookedUp +
+                    ", cached: " + cached +
+                    ", stale: " + stale +
+                    ", stale failed and looked up again: " + staleFailed +
+                    ", last: " + lastConnection;
+        }
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final HostResolver resolver = new HostResolver(this);
+    private final Stats stats = new Stats();
+    private final PhaseLatencies latencies = new PhaseLatencies();
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private long timersScheduled = 0;
+
+    NioTransport() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open selector", e);
+        }
+        thread = new Thread(this::run, "DLZP-transport");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the task on the transport thread. Safe to call from any thread.
+     */
+    void post(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the transport thread after the delay. Must be called on the transport
+     * thread.
+     */
+    Timer schedule(Runnable task, long delayMs) {
+        final Timer timer = new Timer(
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), timersScheduled++, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Starts connecting to the host. The listener is told once the connection is ready (including
+     * the TLS handshake if sslContext is not null), or why it could not be established. Must be
+     * called on the transport thread.
+     */
+    NioConnection connect(String host, int port, SSLContext sslContext, NioConnection.Listener listener) {
+        SSLEngine engine = null;
+        if(sslContext != null) {
+            // Passing the peer lets the engine resume a cached session for it.
+            engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+
+            // Makes the handshake itself fail unless the certificate matches the host name.
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            engine.setSSLParameters(parameters);
+        }
+
+        final NioConnection connection = new NioConnection(this, host, engine, listener);
+        connection.setConnectTimeout(schedule(
+                () -> connection.fail(new SocketTimeoutException("Connecting to " + host + " timed out")),
+                ConnectTimeoutMs));
+
+        resolver.resolve(host, createResolverCallback(connection, port));
+        return connection;
+    }
+
+    /**
+     * Connecting to stale addresses of the host failed, so it is looked up again to try whatever
+     * it resolves to now.
+     */
+    void resolveAgain(NioConnection connection, String host, int port) {
+        stats.staleFailed++;
+        resolver.resolveAgain(host, createResolverCallback(connection, port));
+    }
+
+    private static HostResolver.Callback createResolverCallback(NioConnection connection, int port) {
+        return new HostResolver.Callback() {
+            @Override
+            public void onResolved(List<InetAddress> addresses, int result) {
+                connection.connectTo(addresses, port, result);
+            }
+
+            @Override
+            public void onFailed(UnknownHostException e) {
+                connection.fail(e);
+            }
+        };
+    }
+
+    /**
+     * Drops all cached DNS results, e.g. because the device switched networks. Safe to call from
+     * any thread.
+     */
+    void onNetworkChanged() {
+        post(resolver::invalidate);
+    }
+
+    String getStatsDescription() { return stats.toString(); }
+
+    PhaseLatencies getLatencies() { return latencies; }
+
+    void onConnectionEstablished(NioConnection connection, String host) {
+        resolver.onConnected(host, connection.getRemoteAddress().getAddress());
+
+        if(connection.isIpv6()) {
+            stats.ipv6Connections++;
+        } else {
+            stats.ipv4Connections++;
+        }
+        if(connection.getAttemptsStarted() > 1) {
+            stats.fallbackConnections++;
+        }
+        switch (connection.getResolverResult()) {
+            case HostResolver.ResultLookedUp: stats.lookedUp++; break;
+            case HostResolver.ResultCached: stats.cached++; break;
+            case HostResolver.ResultStale: stats.stale++; break;
+        }
+
+        stats.lastConnection = host + " via " + (connection.isIpv6() ? "IPv6 " : "IPv4 ") +
+                connection.getRemoteAddress().getAddress().getHostAddress() +
+                " (" + HostResolver.describeResult(connection.getResolverResult()) + " DNS, attempt " +
+                connection.getAttemptsStarted() + ")";
+        Log.i(LOG_TAG, "Connected to " + stats.lastConnection);
+    }
+
+    SelectionKey register(SocketChannel channel, NioConnection connection) throws ClosedChannelException {
+        return channel.register(selector, 0, connection);
+    }
+
+    private void run() {
+        while(true) {
+            runPendingTasks();
+            final long waitMs = runDueTimers();
+
+            try {
+                selector.select(waitMs);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Selector failed: " + e);
+                continue;
+            }
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while(keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                final NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    connection.onSelected(key, key.isValid() ? key.readyOps() : 0);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Connection event handling failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Transport task failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return Milliseconds until the next timer is due, or 0 if there are no timers.
+     */
+    private long runDueTimers() {
+        Timer timer;
+        while((timer = timers.peek()) != null) {
+            final long remainingNs = timer.deadlineNs - System.nanoTime();
+            if(timer.cancelled) {
+                timers.poll();
+                continue;
+            }
+            if(remainingNs > 0) {
+                // select(0) would wait forever, so never wait less than 1ms.
+                return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNs));
+            }
+
+            timers.poll();
+            try {
+                timer.task.run();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Transport timer failed: " + e);
+            }
+        }
+        return 0;
+    }
+}
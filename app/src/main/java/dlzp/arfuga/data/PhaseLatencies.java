@@ -0,0 +1,141 @@
+package dlzp.arfuga.data;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import dlzp.arfuga.Durations;
+
+/**
+ * In-memory latency histograms for each phase of DLZPServerClient's round trips, so a slow garage
+ * press can be pinned on DNS, connecting, TLS, or the server itself.
+ *
+ * Each phase has a fixed-size, HDR-style log-linear histogram of microseconds: every power of two
+ * is split into SubBuckets linear buckets, which keeps the relative error of any reported value
+ * under 1/SubBuckets from 1us up to MaxValueUs. Recording only increments a counter, so it never
+ * allocates and is safe from any thread; reading may see a recording in progress, which is fine
+ * for diagnostics.
+ */
+class PhaseLatencies {
+    private static final String LOG_TAG = "PhaseLatencies";
+    private static final int SubBucketBits = 4;
+    private static final int SubBuckets = 1 << SubBucketBits;
+    private static final int MaxExponent = 32;
+    private static final long MaxValueUs = (2L * SubBuckets << MaxExponent) - 1; // ~38 hours
+    private static final int BucketCount = (MaxExponent + 2) * SubBuckets;
+
+    static final int PhaseDns = 0;
+    static final int PhaseConnect = 1;
+    static final int PhaseTls = 2; // The whole handshake, including PhaseVerify.
+    static final int PhaseVerify = 3; // The handshake's delegated tasks: certificate and host name checks.
+    static final int PhaseGaragePiResponse = 4; // Request sent until response read or failure.
+    static final int PhaseGaragePiTotal = 5; // Command requested until response read or failure.
+    static final int PhaseFuelTrackerResponse = 6; // Record or batch sent until receipt read.
+    private static final int PhaseCount = 7;
+
+    private static final String[] PhaseNames = {
+            "dns", "tcp connect", "tls handshake", "tls verify",
+            "garagepi response", "garagepi total", "fueltracker response"
+    };
+
+    private final AtomicLongArray counts = new AtomicLongArray(PhaseCount * BucketCount);
+
+    /**
+     * Records the time elapsed since startNs, as taken from System.nanoTime.
+     */
+    void recordSince(int phase, long startNs) {
+        record(phase, (System.nanoTime() - startNs) / 1000);
+    }
+
+    void record(int phase, long durationUs) {
+        counts.incrementAndGet(phase * BucketCount + bucketIndex(durationUs));
+    }
+
+    private static int bucketIndex(long valueUs) {
+        final long value = Math.max(0, Math.min(valueUs, MaxValueUs));
+        if(value < 2 * SubBuckets) {
+            return (int) value;
+        }
+
+        // The top SubBucketBits + 1 bits of the value select the bucket.
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SubBucketBits;
+        return exponent * SubBuckets + (int) (value >> exponent);
+    }
+
+    /**
+     * @return The middle of the values that fall into the bucket.
+     */
+    private static long bucketValue(int index) {
+        if(index < 2 * SubBuckets) {
+            return index;
+        }
+
+        final int exponent = index / SubBuckets - 1;
+        final long lowest = (long) (index % SubBuckets + SubBuckets) << exponent;
+        return lowest + (1L << exponent) / 2;
+    }
+
+    /**
+     * @return The value below which the fraction of recorded values falls, in microseconds, or -1
+     * if nothing was recorded for the phase.
+     */
+    long getPercentileUs(int phase, double fraction) {
+        final long total = getCount(phase);
+        if(total == 0) {
+            return -1;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for(int i = 0; i < BucketCount; i++) {
+            seen += counts.get(phase * BucketCount + i);
+            if(seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(BucketCount - 1);
+    }
+
+    long getCount(int phase) {
+        long total = 0;
+        for(int i = 0; i < BucketCount; i++) {
+            total += counts.get(phase * BucketCount + i);
+        }
+        return total;
+    }
+
+    /**
+     * @return One line per phase with its p50/p95/p99 in milliseconds.
+     */
+    String describe() {
+        final StringBuilder description = new StringBuilder();
+        for(int phase = 0; phase < PhaseCount; phase++) {
+            if(description.length() > 0) {
+                description.append('\n');
+            }
+            description.append(PhaseNames[phase]).append(": ");
+
+            final long count = getCount(phase);
+            if(count == 0) {
+                description.append("no samples");
+                continue;
+            }
+            description.append("p50 ").append(formatUs(getPercentileUs(phase, 0.50)))
+                    .append(", p95 ").append(formatUs(getPercentileUs(phase, 0.95)))
+                    .append(", p99 ").append(formatUs(getPercentileUs(phase, 0.99)))
+                    .append(" (n=").append(count).append(')');
+        }
+        return description.toString();
+    }
+
+    void dumpToLog() {
+        for(String line : describe().split("\n")) {
+            Log.i(LOG_TAG, line);
+        }
+    }
+
+    private static String formatUs(long valueUs) {
+        return Durations.formatMs(TimeUnit.MICROSECONDS.toNanos(valueUs));
+    }
+}
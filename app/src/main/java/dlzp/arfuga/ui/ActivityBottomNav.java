@@ -6,10 +6,6 @@ import android.bluetooth.le.ScanResult;
 import android.companion.AssociationRequest;
 import android.companion.BluetoothLeDeviceFilter;
 import android.companion.CompanionDeviceManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.IntentSender;
 import android.os.Bundle;
 import android.util.Log;
@@ -30,10 +26,10 @@ import androidx.navigation.ui.NavigationUI;
 import java.util.List;
 
 import dlzp.arfuga.ArfugaApp;
+import dlzp.arfuga.N33ble1.N33ble1Event;
 import dlzp.arfuga.N33ble1.N33ble1MonitorService;
 import dlzp.arfuga.N33ble1.N33ble1State;
 import dlzp.arfuga.R;
-import dlzp.arfuga.data.DLZPServerClient;
 import dlzp.arfuga.databinding.ActivityBottomNavBinding;
 
 //            ActivityCompat.requestPermissions(this, Manifest.permission.BLUETOOTH_CONNECT, 0);
@@ -55,63 +51,48 @@ import dlzp.arfuga.databinding.ActivityBottomNavBinding;
 public class ActivityBottomNav extends AppCompatActivity {
     private static final String LOG_TAG = "ArfugaActivity";
 
-    private static class MyBroadcastReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            switch (action) {
-                case N33ble1State.AdapterOffline:
-                    // TODO ask user to enable bluetooth adapter
-                    break;
-                case N33ble1State.InvalidTargetAddress:
-                    Toast.makeText(context, "Invalid BLE Target Address!", Toast.LENGTH_LONG).show();
-                    break;
-                case N33ble1State.NoBluetoothPermissions:
-                    // TODO ask user to provide bluetooth permissions
-                    break;
-                case N33ble1State.BleServiceError:
-                    Toast.makeText(context, "BLE Service Error!", Toast.LENGTH_LONG).show();
-                    break;
-                case N33ble1State.ChangeReceived:
-                    // TODO update UI with new values
-                    break;
-                case N33ble1State.DeviceConnected:
-                    Toast.makeText(context, "Arduino Device Connected", Toast.LENGTH_SHORT).show();
-                    break;
-                case N33ble1State.DeviceDisconnected:
-                    Toast.makeText(context, "Arduino Device Disconnected", Toast.LENGTH_SHORT).show();
-                    break;
-                case N33ble1State.ResetConnection:
-                case N33ble1State.BluetoothGattReady:
-                case N33ble1State.BluetoothGattError:
-                case DLZPServerClient.GaragePiStatusUpdated:
-                case DLZPServerClient.GaragePiError:
-                case DLZPServerClient.FuelTrackerStatusUpdated:
-                    // These cases are already sufficiently handled via LiveData ui elements or they
-                    // are not ui desirable.
-                    break;
+    private void onN33ble1Event(N33ble1Event event) {
+        final String action = event.action;
+        switch (action) {
+            case N33ble1State.AdapterOffline:
+                // TODO ask user to enable bluetooth adapter
+                break;
+            case N33ble1State.InvalidTargetAddress:
+                Toast.makeText(this, "Invalid BLE Target Address!", Toast.LENGTH_LONG).show();
+                break;
+            case N33ble1State.NoBluetoothPermissions:
+                // TODO ask user to provide bluetooth permissions
+                break;
+            case N33ble1State.BleServiceError:
+                Toast.makeText(this, "BLE Service Error!", Toast.LENGTH_LONG).show();
+                break;
+            case N33ble1State.ChangeReceived:
+                // TODO update UI with new values
+                break;
+            case N33ble1State.DeviceConnected:
+                Toast.makeText(this, "Arduino Device Connected", Toast.LENGTH_SHORT).show();
+                break;
+            case N33ble1State.DeviceDisconnected:
+                Toast.makeText(this, "Arduino Device Disconnected", Toast.LENGTH_SHORT).show();
+                break;
+            case N33ble1State.ResetConnection:
+            case N33ble1State.BluetoothGattReady:
+            case N33ble1State.BluetoothGattError:
+                // These cases are already sufficiently handled via LiveData ui elements or they
+                // are not ui desirable.
+                break;
 
-                default:
-                    Log.e(LOG_TAG, "Unhandled registered broadcast received: " + action);
-            }
+            default:
+                Log.e(LOG_TAG, "Unhandled N33ble1 event: " + action);
         }
     }
-    private MyBroadcastReceiver myBroadcastReceiver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // Setup intent receiving
-        myBroadcastReceiver = new MyBroadcastReceiver();
-        IntentFilter intentFilter = new IntentFilter();
-        for(String action : N33ble1State.AllActions) {
-            intentFilter.addAction(action);
-        }
-        for(String action : DLZPServerClient.AllActions) {
-            intentFilter.addAction(action);
-        }
-        registerReceiver(myBroadcastReceiver, intentFilter);
+        // Setup event receiving, until this is destroyed
+        ArfugaApp.getEventBus().observe(this, N33ble1Event.class, this::onN33ble1Event);
 
         // Prepare UI
         final ActivityBottomNavBinding binding =
@@ -133,10 +114,4 @@ public class ActivityBottomNav extends AppCompatActivity {
         // Noop if already associated - we may be already connected to the device in that case.
         ArfugaApp.getN33ble1AssociationManager().associate(this);
     }
-
-    @Override
-    protected void onDestroy() {
-        unregisterReceiver(myBroadcastReceiver);
-        super.onDestroy();
-    }
 }
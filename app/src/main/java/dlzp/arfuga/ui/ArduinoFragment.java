@@ -1,23 +1,20 @@
 package dlzp.arfuga.ui;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
-import androidx.fragment.app.FragmentActivity;
 
-import dlzp.arfuga.Constants;
+import dlzp.arfuga.ArfugaApp;
 import dlzp.arfuga.N33ble1.N33ble1BluetoothGattCallback;
+import dlzp.arfuga.N33ble1.N33ble1Event;
 import dlzp.arfuga.N33ble1.N33ble1MonitorService;
+import dlzp.arfuga.N33ble1.N33ble1Profile;
 import dlzp.arfuga.N33ble1.N33ble1State;
 import dlzp.arfuga.databinding.FragmentArduinoBinding;
 
@@ -29,38 +26,21 @@ import dlzp.arfuga.databinding.FragmentArduinoBinding;
 public class ArduinoFragment extends Fragment {
     private static final String LOG_TAG = "ArduinoFragment";
 
-    private class MyBroadcastReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if(action.equals(N33ble1State.ChangeReceived)) {
-                onChangeReceived();
-            } else {
-                Log.e(LOG_TAG, "Unhandled registered broadcast received: " + action);
-            }
-        }
-    }
-
     private FragmentArduinoBinding binding;
-    private MyBroadcastReceiver broadcastReceiver = null;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater,
                              ViewGroup container, Bundle savedInstanceState) {
-        final FragmentActivity fragmentActivity = getActivity();
-        if(fragmentActivity != null) {
-            broadcastReceiver = new MyBroadcastReceiver();
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(N33ble1State.ChangeReceived);
-            fragmentActivity.registerReceiver(broadcastReceiver, intentFilter);
-        } else {
-            Log.e(LOG_TAG, "This doesn't have a parent activity?!");
-        }
-
         binding = FragmentArduinoBinding.inflate(inflater, container, false);
 
         onChangeReceived();
 
+        ArfugaApp.getEventBus().observe(getViewLifecycleOwner(), N33ble1Event.class, (N33ble1Event event) -> {
+            if(event.action.equals(N33ble1State.ChangeReceived)) {
+                onChangeReceived();
+            }
+        });
+
         N33ble1State.getDeviceConnected().observe(getViewLifecycleOwner(), (Boolean isConnected) -> {
             binding.buiconConnected.setVisibility(isConnected ? View.VISIBLE : View.INVISIBLE);
             binding.buiconDisconnected.setVisibility(!isConnected ? View.VISIBLE : View.INVISIBLE);
@@ -79,26 +59,39 @@ public class ArduinoFragment extends Fragment {
         });
 
         binding.butResetConnection.setOnClickListener((View) ->
-                N33ble1State.sendIntent(this.getActivity().getApplicationContext(), N33ble1State.ResetConnection));
+                N33ble1State.sendEvent(N33ble1State.ResetConnection));
+
+        binding.valErrorDescription.setOnLongClickListener((View) -> {
+            showDiagnostics();
+            return true;
+        });
 
         return binding.getRoot();
     }
 
     @Override
     public void onDestroyView() {
-        if(broadcastReceiver != null) {
-            final FragmentActivity fragmentActivity = getActivity();
-            if(fragmentActivity != null) {
-                fragmentActivity.unregisterReceiver(broadcastReceiver);
-            } else {
-                Log.e(LOG_TAG, "BroadcastReceiver is not null but this doesn't have a parent activity?!?!");
-            }
-            broadcastReceiver = null;
-        }
         binding = null;
         super.onDestroyView();
     }
 
+    /**
+     * Shows how deep N33ble1's change request queue is and how long requests take, e.g. to tell
+     * whether a slow button press acknowledgement waited in the queue or on N33ble1, and how the
+     * link to N33ble1 is tuned and how long connecting to it takes.
+     */
+    private void showDiagnostics() {
+        final N33ble1BluetoothGattCallback bluetoothGattCallback =
+                N33ble1MonitorService.getBluetoothGattCallbackInstance();
+        new AlertDialog.Builder(requireContext())
+                .setTitle("N33ble1 diagnostics")
+                .setMessage((bluetoothGattCallback == null ? "Not connected"
+                        : bluetoothGattCallback.getChangeRequestStats() + "\n\n" + bluetoothGattCallback.getLinkStats())
+                        + "\n\n" + N33ble1MonitorService.getConnectStats())
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
     private void forgetValues() {
         final TextView[] valueViews = new TextView[]{
                 binding.valButtonLeft,
@@ -116,17 +109,16 @@ public class ArduinoFragment extends Fragment {
         }
     }
 
-    private void setButtonText(N33ble1BluetoothGattCallback bluetoothGattCallback, String charUuid, TextView viewValue) {
+    private void setButtonText(N33ble1BluetoothGattCallback bluetoothGattCallback, int character, TextView viewValue) {
         try {
-            final byte[] bytes = bluetoothGattCallback.getCharacter(charUuid).getValue();
+            final byte[] bytes = bluetoothGattCallback.getCharacter(character).getValue();
             if(bytes == null) {
                 viewValue.setText("null");
             } else if (bytes.length != 1) {
                 viewValue.setText("unexp len " + bytes.length);
             } else {
-                final byte currentSequence = (byte)(bytes[0] & 0b00111111);
-                final byte pressType = (byte)((bytes[0] >> 6) & 0b00000011);
-                viewValue.setText(Byte.toUnsignedInt(pressType) + " " + Byte.toUnsignedInt(currentSequence));
+                viewValue.setText(N33ble1Profile.decodeButtonPressType(bytes[0]) + " " +
+                        N33ble1Profile.decodeButtonSequence(bytes[0]));
             }
         } catch(N33ble1BluetoothGattCallback.NullBleComponentException e) {
             viewValue.setText("char not present");
@@ -135,15 +127,14 @@ public class ArduinoFragment extends Fragment {
     }
 
     private void setSingleLedFromByte(byte b, TextView viewValue) {
-        final byte sequenceA = (byte)(b & 0b00000111);
-        final byte sequenceB = (byte)((b >> 3) & 0b00000111);
-        final byte timing = (byte)((b >> 6) & 0b00000011);
-        viewValue.setText(Byte.toUnsignedInt(timing) + " " + Byte.toUnsignedInt(sequenceB) + " " + Byte.toUnsignedInt(sequenceA));
+        viewValue.setText(N33ble1Profile.decodeLedTiming(b) + " " +
+                N33ble1Profile.decodeLedSecondSequence(b) + " " +
+                N33ble1Profile.decodeLedFirstSequence(b));
     }
 
-    private void setSingleLedFromChar(N33ble1BluetoothGattCallback bluetoothGattCallback, String charUuid, TextView viewValue) {
+    private void setSingleLedFromChar(N33ble1BluetoothGattCallback bluetoothGattCallback, int character, TextView viewValue) {
         try {
-            final byte[] bytes = bluetoothGattCallback.getCharacter(charUuid).getValue();
+            final byte[] bytes = bluetoothGattCallback.getCharacter(character).getValue();
             if(bytes == null) {
                 viewValue.setText("null");
             } else if (bytes.length != 1) {
@@ -162,16 +153,14 @@ public class ArduinoFragment extends Fragment {
             if(bytes == null) {
                 binding.valLedColor.setText("null");
                 binding.valLedExternal.setText("null");
-            } else if (bytes.length != 4) {
+            } else if (bytes.length != N33ble1Profile.BoardLedLength) {
                 binding.valLedColor.setText("unexp len " + bytes.length);
                 binding.valLedExternal.setText("unexp len " + bytes.length);
             } else {
-                final byte red = bytes[1];
-                final byte green = bytes[2];
-                final byte blue = bytes[3];
-
-                binding.valLedColor.setText("R" + Byte.toUnsignedInt(red) + " G" + Byte.toUnsignedInt(green) + " B" + Byte.toUnsignedInt(blue));
-                setSingleLedFromByte(bytes[0], binding.valLedExternal);
+                binding.valLedColor.setText("R" + N33ble1Profile.decodeBoardLedRed(bytes) +
+                        " G" + N33ble1Profile.decodeBoardLedGreen(bytes) +
+                        " B" + N33ble1Profile.decodeBoardLedBlue(bytes));
+                setSingleLedFromByte(N33ble1Profile.decodeBoardLedExternal(bytes), binding.valLedExternal);
             }
         } catch (N33ble1BluetoothGattCallback.NullBleComponentException e) {
             binding.valLedColor.setText("char not present");
@@ -185,15 +174,15 @@ public class ArduinoFragment extends Fragment {
         if(bluetoothGattCallback == null) {
             forgetValues();
         } else {
-            setButtonText(bluetoothGattCallback, Constants.ButtonLeftCharUuid, binding.valButtonLeft);
-            setButtonText(bluetoothGattCallback, Constants.ButtonLeftHandledCharUuid, binding.valButtonLeftHandled);
+            setButtonText(bluetoothGattCallback, N33ble1Profile.ButtonLeft, binding.valButtonLeft);
+            setButtonText(bluetoothGattCallback, N33ble1Profile.ButtonLeftHandled, binding.valButtonLeftHandled);
 
-            setSingleLedFromChar(bluetoothGattCallback, Constants.ButtonLeftLedCharUuid, binding.valButtonLeftLed);
+            setSingleLedFromChar(bluetoothGattCallback, N33ble1Profile.ButtonLeftLed, binding.valButtonLeftLed);
 
-            setButtonText(bluetoothGattCallback, Constants.ButtonRightCharUuid, binding.valButtonRight);
-            setButtonText(bluetoothGattCallback, Constants.ButtonRightHandledCharUuid, binding.valButtonRightHandled);
+            setButtonText(bluetoothGattCallback, N33ble1Profile.ButtonRight, binding.valButtonRight);
+            setButtonText(bluetoothGattCallback, N33ble1Profile.ButtonRightHandled, binding.valButtonRightHandled);
 
-            setSingleLedFromChar(bluetoothGattCallback, Constants.ButtonRightLedCharUuid, binding.valButtonRightLed);
+            setSingleLedFromChar(bluetoothGattCallback, N33ble1Profile.ButtonRightLed, binding.valButtonRightLed);
 
             setBoardLeds(bluetoothGattCallback);
         }
@@ -42,7 +42,8 @@ public class FuelTrackerFragment extends Fragment {
         ArfugaApp.getDLZPServerClient()
                 .getFuelTrackerStatus()
                 .observe(getViewLifecycleOwner(), (String newStatus) -> {
-                    if(newStatus.equals(DLZPServerClient.FuelTrackerStatusValueSuccess)) {
+                    // Once queued, the record is safely on disk and will be sent when possible.
+                    if(newStatus.equals(DLZPServerClient.FuelTrackerStatusValueQueued)) {
                         binding.inputGallons.setText("");
                         binding.inputPrice.setText("");
                         binding.inputRange.setText("");
@@ -54,6 +55,13 @@ public class FuelTrackerFragment extends Fragment {
                     binding.labelStatus.setText(newStatus);
                 });
 
+        ArfugaApp.getDLZPServerClient()
+                .getFuelTrackerQueuedCount()
+                .observe(getViewLifecycleOwner(), (Integer queuedCount) -> {
+                    binding.labelQueued.setText(queuedCount + " queued, not yet sent");
+                    binding.labelQueued.setVisibility(queuedCount > 0 ? View.VISIBLE : View.INVISIBLE);
+                });
+
         return binding.getRoot();
     }
 
@@ -1,5 +1,6 @@
 package dlzp.arfuga.ui;
 
+import android.content.DialogInterface;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -9,11 +10,13 @@ import android.view.ViewGroup;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
 
 import dlzp.arfuga.ArfugaApp;
 import dlzp.arfuga.Constants;
 import dlzp.arfuga.data.DLZPServerClient;
+import dlzp.arfuga.data.GaragePiStatus;
 import dlzp.arfuga.databinding.FragmentGaragepiBinding;
 
 /**
@@ -46,18 +49,27 @@ public class GaragePiFragment extends Fragment {
             ArfugaApp.getDLZPServerClient().toggleGaragePiLocallyEnabled();
         });
 
-        ArfugaApp.getDLZPServerClient()
-                .getGaragePiStatus()
-                .observe(getViewLifecycleOwner(), binding.labStatus::setText);
+        binding.labStatus.setOnLongClickListener((View) -> {
+            showLatencyReport();
+            return true;
+        });
 
         ArfugaApp.getDLZPServerClient()
-                .getGaragePiErrorInfo()
-                .observe(getViewLifecycleOwner(), (String errorInfo) -> {
-                    if(!errorInfo.isEmpty()) {
-                        Toast.makeText(getContext(), errorInfo, Toast.LENGTH_LONG).show();
+                .getGaragePiStatus()
+                .observe(getViewLifecycleOwner(), (GaragePiStatus status) -> {
+                    binding.labStatus.setText(status.description);
+                    if(!status.errorDescription.isEmpty()) {
+                        Toast.makeText(getContext(), status.errorDescription, Toast.LENGTH_LONG).show();
                     }
                 });
 
+        ArfugaApp.getDLZPServerClient()
+                .getGaragePiDoorStatus()
+                .observe(getViewLifecycleOwner(), binding.labDoorStatus::setText);
+
+        // Shows the cached door state right away and refreshes it if it's getting old.
+        ArfugaApp.getDLZPServerClient().refreshGaragePiStatusInBackground();
+
         return binding.getRoot();
     }
 
@@ -74,6 +86,21 @@ public class GaragePiFragment extends Fragment {
         ArfugaApp.getDLZPServerClient().sendGaragePiCmd(cmd);
     }
 
+    /**
+     * Shows how long each phase of recent server round trips took, to tell a slow network from a
+     * slow server, and whether the GaragePi server is currently considered unreachable.
+     */
+    private void showLatencyReport() {
+        final DLZPServerClient client = ArfugaApp.getDLZPServerClient();
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Server diagnostics")
+                .setMessage(client.getLatencyReport() + "\n\n" + client.getNetworkTransportStats() +
+                        "\n\n" + client.getGaragePiCircuitStats())
+                .setPositiveButton("Dump to log", (DialogInterface dialog, int which) -> client.dumpLatencyReport())
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
     private void setFieldsEnabled(boolean enabled) {
         binding.butDisable.setEnabled(enabled);
         binding.butEnable.setEnabled(enabled);
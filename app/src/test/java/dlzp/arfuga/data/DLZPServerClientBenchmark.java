@@ -0,0 +1,340 @@
+package dlzp.arfuga.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.net.ssl.SSLContext;
+
+import dlzp.arfuga.Constants;
+
+/**
+ * Load and latency benchmarks for the networking behind DLZPServerClient, run on the JVM against
+ * local stand-in servers. DLZPServerClient itself needs an Android Context, so the benchmarks drive
+ * the GaragePiConnectionManager and FuelTrackerUploader it delegates to, over an NioTransport of
+ * their own, exactly as DLZPServerClient sets them up.
+ *
+ * The benchmarks take a while, so they are skipped unless enabled:
+ *
+ *   ./gradlew :app:testDebugUnitTest --tests '*DLZPServerClientBenchmark' -Pdlzp.bench=true
+ *
+ * Further -Pdlzp.bench.* properties tune the load: commands (2000), warmup (100), concurrency (8),
+ * deadlineMs (2000), hedging (true), records (2000) and recordBytes (64). The faults the servers
+ * inject are tuned with latencyMs, jitterMs, dropPercent and slowReadDelayMs, see
+ * FakeServerFaults.
+ *
+ * Each benchmark prints a report with throughput, tail latencies and thread counts, and writes it
+ * to build/benchmark-reports/ so that runs before and after a change can be compared.
+ */
+public class DLZPServerClientBenchmark {
+    private static final String ReportDirectory = "build/benchmark-reports";
+    private static final String ThreadNamePrefix = "bench";
+    private static final long ThreadSampleIntervalMs = 10;
+
+    private static SelfSignedCertificate certificate;
+
+    /**
+     * Keeps the highest number of threads seen while it runs, not counting the fake servers' and
+     * the benchmark's own threads.
+     */
+    private static final class ThreadSampler implements AutoCloseable {
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                (Runnable runnable) -> new Thread(runnable, ThreadNamePrefix + "-thread-sampler"));
+        private final int before = countClientThreads();
+        private volatile int peak = before;
+
+        ThreadSampler() {
+            executor.scheduleAtFixedRate(() -> peak = Math.max(peak, countClientThreads()),
+                    0, ThreadSampleIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            executor.shutdownNow();
+        }
+
+        String describe() {
+            return before + " before, peak " + peak + " (+" + (peak - before) + "), " +
+                    countClientThreads() + " after";
+        }
+
+        private static int countClientThreads() {
+            int count = 0;
+            for(Thread thread : Thread.getAllStackTraces().keySet()) {
+                final String name = thread.getName();
+                if(!name.startsWith(ThreadNamePrefix) &&
+                        !name.startsWith(FakeGaragePiServer.ThreadNamePrefix) &&
+                        !name.startsWith(FakeFuelTrackerServer.ThreadNamePrefix)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        assumeTrue("Benchmarks are skipped unless run with -Pdlzp.bench=true", Boolean.getBoolean("dlzp.bench"));
+        certificate = SelfSignedCertificate.generate();
+        certificate.trustByDefault();
+    }
+
+    /**
+     * Sends GaragePi commands from several threads at once, each waiting for its response before
+     * sending the next, and measures each command from being requested to its response.
+     */
+    @Test
+    public void garagePiCommands() throws Exception {
+        final int commands = Integer.getInteger("dlzp.bench.commands", 2000);
+        final int warmup = Integer.getInteger("dlzp.bench.warmup", 100);
+        final int concurrency = Integer.getInteger("dlzp.bench.concurrency", 8);
+        final long deadlineMs = Long.getLong("dlzp.bench.deadlineMs", 2000);
+        final boolean hedging = Boolean.parseBoolean(System.getProperty("dlzp.bench.hedging", "true"));
+        final FakeServerFaults faults = FakeServerFaults.fromProperties();
+
+        final SSLContext serverContext = certificate.createServerContext();
+        try (FakeGaragePiServer server = new FakeGaragePiServer(serverContext, faults);
+             ThreadSampler threads = new ThreadSampler()) {
+            final NioTransport transport = new NioTransport();
+            // Commands go straight to the manager, so the breaker only keeps count; nothing is rejected.
+            final GaragePiConnectionManager manager = new GaragePiConnectionManager(
+                    "localhost", server.getPort(), 0, hedging, transport,
+                    new CircuitBreaker("GaragePi localhost", transport, () -> { }));
+
+            final AtomicInteger nextCommand = new AtomicInteger();
+            final AtomicLongArray latenciesNs = new AtomicLongArray(commands);
+            final AtomicInteger timeouts = new AtomicInteger();
+            final AtomicInteger failures = new AtomicInteger();
+            final AtomicInteger completed = new AtomicInteger();
+
+            final ExecutorService workers = Executors.newFixedThreadPool(concurrency,
+                    (Runnable runnable) -> new Thread(runnable, ThreadNamePrefix + "-worker"));
+            final CountDownLatch warmedUp = new CountDownLatch(concurrency);
+            final CountDownLatch finished = new CountDownLatch(concurrency);
+            for(int worker = 0; worker < concurrency; worker++) {
+                final String key = "bench-" + worker;
+                workers.execute(() -> {
+                    try {
+                        for(int i = 0; i < warmup / concurrency; i++) {
+                            sendAndWait(manager, key, Constants.GaragePiCmdStatus, deadlineMs);
+                        }
+                        warmedUp.countDown();
+                        warmedUp.await();
+
+                        int index;
+                        while((index = nextCommand.getAndIncrement()) < commands) {
+                            // Mostly status polls, with a settings change now and then.
+                            final String command = index % 4 == 3
+                                    ? Constants.GaragePiCmdLoud
+                                    : Constants.GaragePiCmdStatus;
+                            final long sentNs = System.nanoTime();
+                            final Exception failure = sendAndWait(manager, key, command, deadlineMs);
+                            latenciesNs.set(index, System.nanoTime() - sentNs);
+                            completed.incrementAndGet();
+                            if(failure instanceof SocketTimeoutException) {
+                                timeouts.incrementAndGet();
+                            } else if (failure != null) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+
+            warmedUp.await();
+            final long startNs = System.nanoTime();
+            finished.await();
+            final long elapsedNs = System.nanoTime() - startNs;
+            workers.shutdown();
+
+            final StringBuilder report = new StringBuilder()
+                    .append("GaragePi commands: ").append(commands).append(" after ").append(warmup)
+                    .append(" warmup, concurrency ").append(concurrency)
+                    .append(", deadline ").append(deadlineMs).append("ms, hedging ").append(hedging ? "on" : "off")
+                    .append("\nserver faults: ").append(faults)
+                    .append('\n').append(describeThroughput(completed.get(), "commands", elapsedNs))
+                    .append("\nlatency: ").append(describeLatencies(latenciesNs, completed.get()))
+                    .append("\nfailures: ").append(timeouts.get()).append(" timed out, ")
+                    .append(failures.get()).append(" other")
+                    .append("\nclient threads: ").append(threads.describe())
+                    .append("\nconnections: ").append(manager.getStatsDescription())
+                    .append("\ntransport: ").append(transport.getStatsDescription())
+                    .append("\nserver: ").append(server.getStatsDescription())
+                    .append("\nphases (including warmup):\n").append(transport.getLatencies().describe());
+            writeReport("garagepi-commands", report.toString());
+
+            assertEquals("Every command must complete or fail", commands, completed.get());
+        }
+    }
+
+    /**
+     * Uploads a backlog of FuelTracker records, starting another upload whenever one fails, and
+     * measures how long the whole backlog takes.
+     */
+    @Test
+    public void fuelTrackerBacklog() throws Exception {
+        final int records = Integer.getInteger("dlzp.bench.records", 2000);
+        final int recordBytes = Integer.getInteger("dlzp.bench.recordBytes", 64);
+        final FakeServerFaults faults = FakeServerFaults.fromProperties();
+
+        final File journalFile = File.createTempFile("dlzp-bench", ".journal");
+        journalFile.deleteOnExit();
+        final ExecutorService diskExecutor = Executors.newSingleThreadExecutor(
+                (Runnable runnable) -> new Thread(runnable, ThreadNamePrefix + "-disk"));
+        final FuelTrackerJournal journal = new FuelTrackerJournal(journalFile, diskExecutor);
+        diskExecutor.submit(() -> {
+            journal.open();
+            return null;
+        }).get();
+
+        final char[] padding = new char[recordBytes];
+        Arrays.fill(padding, 'x');
+        final CountDownLatch durable = new CountDownLatch(records);
+        for(int i = 0; i < records; i++) {
+            journal.append("NEWDATA:" + i + "," + new String(padding), durable::countDown);
+        }
+        durable.await();
+
+        try (FakeFuelTrackerServer server = new FakeFuelTrackerServer(faults);
+             ThreadSampler threads = new ThreadSampler()) {
+            final NioTransport transport = new NioTransport();
+            final FuelTrackerUploader uploader = new FuelTrackerUploader(
+                    "localhost", server.getPort(), transport, FuelTrackerUploader.BatchSupportUnknown);
+
+            int uploads = 0;
+            int failedUploads = 0;
+            final long startNs = System.nanoTime();
+            while(journal.getPendingCount() > 0 && failedUploads <= records) {
+                final CountDownLatch done = new CountDownLatch(1);
+                final boolean[] uploadedAll = new boolean[1];
+                uploader.uploadPending(journal, new FuelTrackerUploader.Listener() {
+                    @Override
+                    public void onStatusChanged(String status) {}
+
+                    @Override
+                    public void onRecordsUploaded() {}
+
+                    @Override
+                    public void onBatchSupportFound(int batchSupport) {}
+
+                    @Override
+                    public void onFinished(boolean all) {
+                        uploadedAll[0] = all;
+                        done.countDown();
+                    }
+                });
+                done.await();
+                uploads++;
+                if(!uploadedAll[0]) {
+                    failedUploads++;
+                }
+            }
+            final long elapsedNs = System.nanoTime() - startNs;
+
+            final StringBuilder report = new StringBuilder()
+                    .append("FuelTracker backlog: ").append(records).append(" records of ")
+                    .append(recordBytes).append(" bytes")
+                    .append("\nserver faults: ").append(faults)
+                    .append('\n').append(describeThroughput(records - journal.getPendingCount(), "records", elapsedNs))
+                    .append("\nuploads: ").append(uploads).append(", failed: ").append(failedUploads)
+                    .append("\nclient threads: ").append(threads.describe())
+                    .append("\ntransport: ").append(transport.getStatsDescription())
+                    .append("\nserver: ").append(server.getStatsDescription())
+                    .append("\nphases:\n").append(transport.getLatencies().describe());
+            writeReport("fueltracker-backlog", report.toString());
+
+            assertEquals("Every record must be uploaded", 0, journal.getPendingCount());
+        } finally {
+            diskExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return The command's failure, or null if it got a response.
+     */
+    private static Exception sendAndWait(GaragePiConnectionManager manager, String key, String command,
+                                         long deadlineMs) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] failure = new Exception[1];
+        manager.sendCommand(key, command, true, deadlineMs, new GaragePiConnectionManager.Callback() {
+            @Override
+            public void onSent() {}
+
+            @Override
+            public void onResponse(GaragePiProtocol.Response response) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(IOException e) {
+                failure[0] = e;
+                done.countDown();
+            }
+        });
+        done.await();
+        return failure[0];
+    }
+
+    private static String describeThroughput(int count, String unit, long elapsedNs) {
+        final double elapsedSeconds = elapsedNs / 1e9;
+        return String.format(Locale.US, "throughput: %.1f %s/s (%d in %.2fs)",
+                count / elapsedSeconds, unit, count, elapsedSeconds);
+    }
+
+    private static String describeLatencies(AtomicLongArray latenciesNs, int count) {
+        if(count == 0) {
+            return "no samples";
+        }
+
+        final long[] sorted = new long[count];
+        for(int i = 0; i < count; i++) {
+            sorted[i] = latenciesNs.get(i);
+        }
+        Arrays.sort(sorted);
+        return String.format(Locale.US, "p50 %.1fms, p95 %.1fms, p99 %.1fms, p99.9 %.1fms, max %.1fms",
+                percentileMs(sorted, 0.50), percentileMs(sorted, 0.95), percentileMs(sorted, 0.99),
+                percentileMs(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentileMs(long[] sorted, double fraction) {
+        final int rank = (int) Math.ceil(sorted.length * fraction);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))] / 1e6;
+    }
+
+    private static void writeReport(String name, String report) throws IOException {
+        System.out.println(report);
+
+        final File directory = new File(ReportDirectory);
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        final String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        try (Writer writer = new FileWriter(new File(directory, name + "-" + timestamp + ".txt"))) {
+            writer.write(report);
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package dlzp.arfuga.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in FuelTrackerServer on localhost speaking the line-based dialogue: it greets with
+ * "HELLO! BATCH" to offer batching, acknowledges single NEWDATA records and batches announced with
+ * "BATCH:<n>" with "received", and asks "STILLTHERE?" every StillThereInterval acknowledgements, as the real server
+ * does on a long session. "GOODBYE!" ends the session.
+ *
+ * The uploader waits 20 seconds for an answer, so a dropped request closes the connection instead
+ * of going unanswered, as a connection lost mid-upload would.
+ */
+final class FakeFuelTrackerServer implements Closeable {
+    static final String ThreadNamePrefix = "fake-fueltracker";
+    private static final int StillThereInterval = 10;
+
+    /**
+     * Splits the incoming bytes into lines, reading them as slowly as the faults ask for.
+     */
+    private final class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[faults.getReadSize()];
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return The next line, or null once the client closed the connection.
+         */
+        String readLine() throws IOException, InterruptedException {
+            while(lines.isEmpty()) {
+                faults.pauseReading();
+                final int read = in.read(buffer);
+                if(read <= 0) {
+                    return null;
+                }
+                for(int i = 0; i < read; i++) {
+                    if(buffer[i] != '\n') {
+                        line.write(buffer[i]);
+                        continue;
+                    }
+                    lines.add(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                }
+            }
+            return lines.poll();
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final FakeServerFaults faults;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(
+            (Runnable runnable) -> new Thread(runnable, ThreadNamePrefix + "-connection"));
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger records = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    FakeFuelTrackerServer(FakeServerFaults faults) throws IOException {
+        this.faults = faults;
+        this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+
+        final Thread acceptor = new Thread(this::accept, ThreadNamePrefix + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() { return serverSocket.getLocalPort(); }
+
+    String getStatsDescription() {
+        return "sessions: " + sessions.get() + ", records: " + records.get() + ", dropped: " + dropped.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while(!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                // Like the client, so that small replies aren't held back waiting for an ACK.
+                socket.setTcpNoDelay(true);
+                sessions.incrementAndGet();
+                connectionExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            final LineReader reader = new LineReader(connection.getInputStream());
+            final OutputStream out = connection.getOutputStream();
+            writeLine(out, "HELLO! BATCH");
+
+            int acknowledged = 0;
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.equals("GOODBYE!")) {
+                    return;
+                }
+                if(line.equals("YESSTILLHERE!")) {
+                    continue;
+                }
+
+                int count = 1;
+                if(line.startsWith("BATCH:")) {
+                    count = Integer.parseInt(line.substring("BATCH:".length()));
+                    writeLine(out, "BATCHOK");
+                    for(int i = 0; i < count; i++) {
+                        if(reader.readLine() == null) {
+                            return;
+                        }
+                    }
+                } else if (!line.startsWith("NEWDATA")) {
+                    continue;
+                }
+
+                if(faults.shouldDrop()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                faults.delayReply();
+                if(++acknowledged % StillThereInterval == 0) {
+                    writeLine(out, "STILLTHERE?");
+                }
+                records.addAndGet(count);
+                writeLine(out, line.startsWith("BATCH:") ? "received " + count : "received");
+            }
+        } catch (IOException | InterruptedException | NumberFormatException e) {
+            // The client closed the connection or the server is shutting down.
+        }
+    }
+
+    private static void writeLine(OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
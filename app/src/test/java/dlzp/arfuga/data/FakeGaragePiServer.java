@@ -0,0 +1,124 @@
+package dlzp.arfuga.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+/**
+ * A stand-in GaragePi server speaking protocol v2 over TLS on localhost. Each connection is served
+ * by its own thread, one request at a time, and kept open for as many requests as the client sends.
+ *
+ * A dropped request is read but never answered, as if it or its response were lost, so the client
+ * only finds out through its deadline.
+ */
+final class FakeGaragePiServer implements Closeable {
+    static final String ThreadNamePrefix = "fake-garagepi";
+
+    private final SSLServerSocket serverSocket;
+    private final FakeServerFaults faults;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(
+            (Runnable runnable) -> new Thread(runnable, ThreadNamePrefix + "-connection"));
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    FakeGaragePiServer(SSLContext sslContext, FakeServerFaults faults) throws IOException {
+        this.faults = faults;
+        this.serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory()
+                .createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+
+        final Thread acceptor = new Thread(this::accept, ThreadNamePrefix + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() { return serverSocket.getLocalPort(); }
+
+    String getStatsDescription() {
+        return "connections: " + connections.get() + ", requests: " + requests.get() + ", dropped: " + dropped.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connectionExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while(!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                // Like the client, so that small replies aren't held back waiting for an ACK.
+                socket.setTcpNoDelay(true);
+                connections.incrementAndGet();
+                connectionExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        final GaragePiFrameDecoder decoder = new GaragePiFrameDecoder();
+        final byte[] buffer = new byte[faults.getReadSize()];
+        try (Socket connection = socket) {
+            final InputStream in = connection.getInputStream();
+            final OutputStream out = connection.getOutputStream();
+            while(true) {
+                faults.pauseReading();
+                final int read = in.read(buffer);
+                if(read <= 0) {
+                    return;
+                }
+
+                decoder.feed(buffer, 0, read);
+                GaragePiFrame request;
+                while((request = decoder.poll()) != null) {
+                    final byte[] reply = reply(request);
+                    if(reply != null) {
+                        out.write(reply);
+                        out.flush();
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client closed the connection or the server is shutting down.
+        }
+    }
+
+    /**
+     * @return The encoded reply, or null if the request is dropped.
+     */
+    private byte[] reply(GaragePiFrame request) throws InterruptedException {
+        if(request.opcode == GaragePiFrame.OpHello) {
+            return new GaragePiFrame(GaragePiFrame.OpHello)
+                    .putLong(GaragePiFrame.FieldVersion, GaragePiFrame.Version)
+                    .encode();
+        }
+        if(request.opcode == GaragePiFrame.OpSubscribe) {
+            return new GaragePiFrame(request.opcode, GaragePiFrame.StatusUnknownOpcode, 0).encode();
+        }
+
+        requests.incrementAndGet();
+        if(faults.shouldDrop()) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        faults.delayReply();
+        return new GaragePiFrame(request.opcode)
+                .putString(GaragePiFrame.FieldDoorState, "closed")
+                .putBoolean(GaragePiFrame.FieldEnabled, true)
+                .putBoolean(GaragePiFrame.FieldLoud, false)
+                .putLong(GaragePiFrame.FieldTimestamp, System.currentTimeMillis())
+                .encode();
+    }
+}
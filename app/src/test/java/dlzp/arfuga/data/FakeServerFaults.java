@@ -0,0 +1,59 @@
+package dlzp.arfuga.data;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Misbehaviour the fake servers inject into every connection, so the client can be measured
+ * against a slow or lossy network instead of a perfect loopback one. Read from dlzp.bench.*
+ * system properties, see DLZPServerClientBenchmark.
+ */
+final class FakeServerFaults {
+    static final int SlowReadChunkSize = 16;
+
+    final long latencyMs; // Added before every reply.
+    final long jitterMs; // Up to this much more, uniformly random.
+    final double dropRate; // Fraction of requests lost, see the servers for what that means.
+    final long slowReadDelayMs; // Pause before every read of SlowReadChunkSize bytes, 0 to read normally.
+
+    FakeServerFaults(long latencyMs, long jitterMs, double dropRate, long slowReadDelayMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+        this.dropRate = dropRate;
+        this.slowReadDelayMs = slowReadDelayMs;
+    }
+
+    static FakeServerFaults fromProperties() {
+        return new FakeServerFaults(
+                Long.getLong("dlzp.bench.latencyMs", 5),
+                Long.getLong("dlzp.bench.jitterMs", 5),
+                Integer.getInteger("dlzp.bench.dropPercent", 0) / 100.0,
+                Long.getLong("dlzp.bench.slowReadDelayMs", 0));
+    }
+
+    boolean isSlowReader() { return slowReadDelayMs > 0; }
+
+    int getReadSize() { return isSlowReader() ? SlowReadChunkSize : 8192; }
+
+    boolean shouldDrop() {
+        return dropRate > 0 && ThreadLocalRandom.current().nextDouble() < dropRate;
+    }
+
+    void delayReply() throws InterruptedException {
+        final long delayMs = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+        if(delayMs > 0) {
+            Thread.sleep(delayMs);
+        }
+    }
+
+    void pauseReading() throws InterruptedException {
+        if(slowReadDelayMs > 0) {
+            Thread.sleep(slowReadDelayMs);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latencyMs + "ms (+" + jitterMs + "ms jitter), drop " + Math.round(dropRate * 100) +
+                "%, slow reader " + (isSlowReader() ? slowReadDelayMs + "ms per " + SlowReadChunkSize + " bytes" : "off");
+    }
+}
@@ -0,0 +1,88 @@
+package dlzp.arfuga.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * A throwaway self-signed certificate for localhost, generated with the JDK's keytool so that no
+ * key material needs to be checked in.
+ */
+final class SelfSignedCertificate {
+    private static final String Password = "benchmark";
+    private static final String StoreType = "PKCS12";
+
+    private final File keyStoreFile;
+
+    private SelfSignedCertificate(File keyStoreFile) {
+        this.keyStoreFile = keyStoreFile;
+    }
+
+    static SelfSignedCertificate generate() throws IOException, InterruptedException {
+        final File keyStoreFile = File.createTempFile("dlzp-bench", ".p12");
+        if(!keyStoreFile.delete()) {
+            throw new IOException("Unable to prepare " + keyStoreFile);
+        }
+        keyStoreFile.deleteOnExit();
+
+        final String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        final Process process = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "localhost",
+                "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost",
+                "-ext", "san=dns:localhost,ip:127.0.0.1,ip:::1",
+                "-validity", "2",
+                "-storetype", StoreType,
+                "-keystore", keyStoreFile.getPath(),
+                "-storepass", Password,
+                "-keypass", Password)
+                .redirectErrorStream(true)
+                .start();
+        final byte[] output = readAll(process.getInputStream());
+        if(process.waitFor() != 0) {
+            throw new IOException("keytool failed: " + new String(output));
+        }
+        return new SelfSignedCertificate(keyStoreFile);
+    }
+
+    SSLContext createServerContext() throws GeneralSecurityException, IOException {
+        final KeyStore keyStore = KeyStore.getInstance(StoreType);
+        try (InputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, Password.toCharArray());
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, Password.toCharArray());
+
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        return sslContext;
+    }
+
+    /**
+     * Makes the JVM's default trust managers trust only this certificate. GaragePiConnectionManager
+     * builds its SSLContext with the default trust managers, so this must be called before creating
+     * one.
+     */
+    void trustByDefault() {
+        System.setProperty("javax.net.ssl.trustStore", keyStoreFile.getPath());
+        System.setProperty("javax.net.ssl.trustStoreType", StoreType);
+        System.setProperty("javax.net.ssl.trustStorePassword", Password);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}